@@ -14,7 +14,11 @@ public class AbstractMockTaskHandle implements Comparable<AbstractMockTaskHandle
     /**
      * Tick at which the task was scheduled.
      */
-    private final long scheduleTime;
+    private long scheduleTime;
+    /**
+     * The task manager the task is scheduled with, or {@code null}.
+     */
+    private MockTaskManager taskManager;
 
     /**
      * Keeps task by reference if it's a {@link ManagedObject}, to comply with the semantics of
@@ -46,7 +50,31 @@ public class AbstractMockTaskHandle implements Comparable<AbstractMockTaskHandle
         return start;
     }
 
+    /**
+     * Moves the task to a new tick.  Must only be called while the task
+     * is not in a task queue.
+     */
+    void setScheduleTime(long scheduleTime) {
+        this.scheduleTime = scheduleTime;
+    }
+
+    MockTaskManager getTaskManager() {
+        return taskManager;
+    }
+
+    void setTaskManager(MockTaskManager taskManager) {
+        this.taskManager = taskManager;
+    }
+
     public Task getTask() {
         return task != null ? task : taskRef.get();
     }
+
+    /**
+     * Returns the reference to the task if it is a {@link ManagedObject},
+     * or the task itself otherwise.
+     */
+    Object getTaskRoot() {
+        return task != null ? task : taskRef;
+    }
 }
@@ -0,0 +1,298 @@
+package net.java.dev.mocksgs;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts how often each managed object and each name binding is accessed
+ * through a {@link MockDataManager}, in order to find the hot objects that
+ * would become contention points in a multi-node deployment. <p>
+ *
+ * Statistics are collected while attached to a data manager with
+ * {@link MockDataManager#setAccessStatistics}.  Counts are kept both
+ * cumulatively and for the current task: the {@link MockTaskManager}
+ * calls {@link #beginTask} before it runs each task, so after a task has
+ * run {@link #getTask} holds the accesses made by that task alone.  <p>
+ *
+ * Accesses to an object through a name binding are counted against both
+ * the name and the object.  A set of statistics is not thread safe, but
+ * the data manager only updates it while holding its own lock.
+ */
+public class AccessStatistics {
+
+    /**
+     * The kinds of access that are counted.
+     */
+    public enum Access {
+        /** {@code ManagedReference.get} or {@code getObjectWithId} */
+        GET,
+        /** {@code ManagedReference.getForUpdate} */
+        GET_FOR_UPDATE,
+        /** {@code DataManager.markForUpdate} */
+        MARK_FOR_UPDATE,
+        /** {@code DataManager.getBinding} */
+        GET_BINDING,
+        /** {@code DataManager.getBindingForUpdate} */
+        GET_BINDING_FOR_UPDATE
+    }
+
+    private static final int ACCESS_KINDS = Access.values().length;
+
+    private final Counts cumulative = new Counts();
+    private Counts task = new Counts();
+    private long tasks;
+
+    /**
+     * Returns the counts of every access since the statistics were
+     * created or last reset.
+     *
+     * @return the cumulative counts
+     */
+    public Counts getCumulative() {
+        return cumulative;
+    }
+
+    /**
+     * Returns the counts of the accesses made since {@link #beginTask}
+     * was last called.
+     *
+     * @return the counts for the current or last task
+     */
+    public Counts getTask() {
+        return task;
+    }
+
+    /**
+     * Returns the number of times {@link #beginTask} has been called.
+     *
+     * @return the number of tasks
+     */
+    public long getTaskCount() {
+        return tasks;
+    }
+
+    /**
+     * Starts counting the accesses of a new task.
+     */
+    public void beginTask() {
+        task = new Counts();
+        tasks++;
+    }
+
+    /**
+     * Clears all of the counts.
+     */
+    public void reset() {
+        cumulative.clear();
+        task = new Counts();
+        tasks = 0;
+    }
+
+    /**
+     * Returns a report of the ten hottest objects and bindings.
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("Access statistics over ").append(tasks)
+            .append(" tasks\n");
+        appendTable(text, "Object", cumulative.getHottestObjects(10));
+        appendTable(text, "Binding", cumulative.getHottestBindings(10));
+        return text.toString();
+    }
+
+    void recordObject(long id, Access access) {
+        cumulative.recordObject(id, access);
+        task.recordObject(id, access);
+    }
+
+    void recordBinding(String name, long id, Access access) {
+        cumulative.recordBinding(name, id, access);
+        task.recordBinding(name, id, access);
+    }
+
+    private static void appendTable(StringBuilder text, String title,
+                                    List<Hotspot> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        text.append(String.format("%n%-40s %10s", title, "Total"));
+        for (Access access : Access.values()) {
+            text.append(String.format(" %22s", access));
+        }
+        text.append(String.format("%n"));
+        for (Hotspot row : rows) {
+            text.append(String.format("%-40s %10d", row.getKey(),
+                                      row.getTotal()));
+            for (Access access : Access.values()) {
+                text.append(String.format(" %22d", row.getCount(access)));
+            }
+            text.append(String.format("%n"));
+        }
+    }
+
+    /**
+     * Access counts by object id and by binding name.
+     */
+    public static final class Counts {
+        private final LongHashMap<long[]> objects = new LongHashMap<long[]>();
+        private final Map<String, long[]> bindings =
+                new HashMap<String, long[]>();
+
+        Counts() {
+        }
+
+        /**
+         * Returns the number of accesses of the given kind to the object
+         * with the given id.
+         *
+         * @param id the id of the object
+         * @param access the kind of access
+         * @return the number of accesses
+         */
+        public long getObjectCount(BigInteger id, Access access) {
+            if (id.bitLength() >= Long.SIZE) {
+                return 0;
+            }
+            long[] counts = objects.get(id.longValue());
+            return counts == null ? 0 : counts[access.ordinal()];
+        }
+
+        /**
+         * Returns the number of accesses of the given kind to the object
+         * bound to the given name through that name.
+         *
+         * @param name the name of the binding
+         * @param access the kind of access
+         * @return the number of accesses
+         */
+        public long getBindingCount(String name, Access access) {
+            long[] counts = bindings.get(name);
+            return counts == null ? 0 : counts[access.ordinal()];
+        }
+
+        /**
+         * Returns the objects with the most accesses of any kind, most
+         * accessed first.
+         *
+         * @param n the maximum number of objects to return
+         * @return the hottest objects, keyed by id
+         */
+        public List<Hotspot> getHottestObjects(int n) {
+            List<Hotspot> list = new ArrayList<Hotspot>(objects.size());
+            for (long id : objects.keys()) {
+                list.add(new Hotspot(Long.toString(id), objects.get(id)));
+            }
+            return top(list, n);
+        }
+
+        /**
+         * Returns the bindings with the most accesses of any kind, most
+         * accessed first.
+         *
+         * @param n the maximum number of bindings to return
+         * @return the hottest bindings, keyed by name
+         */
+        public List<Hotspot> getHottestBindings(int n) {
+            List<Hotspot> list = new ArrayList<Hotspot>(bindings.size());
+            for (Map.Entry<String, long[]> entry : bindings.entrySet()) {
+                list.add(new Hotspot(entry.getKey(), entry.getValue()));
+            }
+            return top(list, n);
+        }
+
+        void recordObject(long id, Access access) {
+            long[] counts = objects.get(id);
+            if (counts == null) {
+                counts = new long[ACCESS_KINDS];
+                objects.put(id, counts);
+            }
+            counts[access.ordinal()]++;
+        }
+
+        void recordBinding(String name, long id, Access access) {
+            long[] counts = bindings.get(name);
+            if (counts == null) {
+                counts = new long[ACCESS_KINDS];
+                bindings.put(name, counts);
+            }
+            counts[access.ordinal()]++;
+            recordObject(id, access);
+        }
+
+        void clear() {
+            objects.clear();
+            bindings.clear();
+        }
+
+        private static List<Hotspot> top(List<Hotspot> list, int n) {
+            Collections.sort(list, new Comparator<Hotspot>() {
+                @Override
+                public int compare(Hotspot a, Hotspot b) {
+                    if (a.getTotal() != b.getTotal()) {
+                        return a.getTotal() > b.getTotal() ? -1 : 1;
+                    }
+                    return a.getKey().compareTo(b.getKey());
+                }
+            });
+            return list.size() > n ? list.subList(0, n) : list;
+        }
+    }
+
+    /**
+     * A snapshot of the access counts of one object or binding.
+     */
+    public static final class Hotspot {
+        private final String key;
+        private final long[] counts;
+        private final long total;
+
+        Hotspot(String key, long[] counts) {
+            this.key = key;
+            this.counts = counts.clone();
+            long sum = 0;
+            for (long count : counts) {
+                sum += count;
+            }
+            this.total = sum;
+        }
+
+        /**
+         * Returns the id of the object or the name of the binding.
+         *
+         * @return the key
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Returns the number of accesses of the given kind.
+         *
+         * @param access the kind of access
+         * @return the number of accesses
+         */
+        public long getCount(Access access) {
+            return counts[access.ordinal()];
+        }
+
+        /**
+         * Returns the number of accesses of every kind.
+         *
+         * @return the total number of accesses
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            return key + ": " + total + " accesses";
+        }
+    }
+}
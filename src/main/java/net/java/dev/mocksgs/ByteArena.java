@@ -0,0 +1,101 @@
+package net.java.dev.mocksgs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An append-only store of byte blobs, held in large buffers that may be
+ * allocated outside the Java heap. <p>
+ *
+ * Blobs are copied into the current chunk, and a new chunk is allocated
+ * when it is full.  Blobs are never moved or freed individually: once
+ * enough of an arena is no longer in use, its owner copies the live blobs
+ * into a new arena and drops the old one.  This also means that an arena
+ * can safely be shared by several data stores.
+ */
+final class ByteArena {
+
+    /**
+     * The size of each chunk, unless a single blob is larger.
+     */
+    static final int CHUNK_SIZE = 1 << 20;
+
+    /**
+     * If {@code true}, chunks are direct buffers outside the Java heap.
+     */
+    private final boolean direct;
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    /**
+     * The chunk that blobs are being appended to, or {@code null}.
+     */
+    private ByteBuffer current;
+    /**
+     * Total number of bytes appended.
+     */
+    private long allocated;
+
+    ByteArena(boolean direct) {
+        this.direct = direct;
+    }
+
+    boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Copies the remaining bytes of the buffer into the arena.
+     *
+     * @param bytes the bytes to store
+     * @return the location of the bytes
+     */
+    synchronized Blob put(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        if (current == null || current.remaining() < length) {
+            int size = Math.max(CHUNK_SIZE, length);
+            current = direct ? ByteBuffer.allocateDirect(size)
+                             : ByteBuffer.allocate(size);
+            chunks.add(current);
+        }
+        Blob blob = new Blob(chunks.size() - 1, current.position(), length);
+        current.put(bytes);
+        allocated += length;
+        return blob;
+    }
+
+    /**
+     * Returns a read-only view of the bytes of the blob.
+     */
+    ByteBuffer get(Blob blob) {
+        ByteBuffer chunk;
+        synchronized (this) {
+            chunk = chunks.get(blob.chunk);
+        }
+        ByteBuffer view = chunk.asReadOnlyBuffer();
+        view.limit(blob.offset + blob.length);
+        view.position(blob.offset);
+        return view;
+    }
+
+    /**
+     * Returns the total number of bytes appended to the arena.
+     */
+    synchronized long allocated() {
+        return allocated;
+    }
+
+    /**
+     * The location of a blob in an arena.
+     */
+    static final class Blob {
+        final int chunk;
+        final int offset;
+        final int length;
+
+        Blob(int chunk, int offset, int length) {
+            this.chunk = chunk;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package net.java.dev.mocksgs;
+
+/**
+ * A map keyed by primitive {@code long} values that can be copied in
+ * constant time. <p>
+ *
+ * Until it is first copied the map is a single {@link LongHashMap}, so a
+ * map that is never copied costs no more than one.  The first
+ * {@link #copy} splits the entries into chunks of at most
+ * {@link #CHUNK_SIZE} entries, each a {@code LongHashMap}, found through a
+ * directory indexed by the high bits of the key's hash, which takes time
+ * proportional to the size of the map.  From then on a chunk that grows
+ * too large is split in two, doubling the directory if needed, so no
+ * operation ever rehashes the whole map.  A copy shares the directory
+ * and every chunk between the two maps, and each map then copies the
+ * directory and a chunk the first time it modifies them.  A copy
+ * followed by a few changes therefore costs time proportional to the
+ * number of chunks changed, not to the size of the map.  <p>
+ *
+ * A chunk is never modified once it is shared, so maps that share chunks
+ * may be used by different threads.  As with {@code LongHashMap},
+ * {@code null} values are not permitted.
+ *
+ * @param <V> the type of the values held by the map
+ */
+final class CopyOnWriteLongHashMap<V> {
+
+    /**
+     * The number of entries above which a chunk is split.
+     */
+    static final int CHUNK_SIZE = 1024;
+    /**
+     * The largest directory depth.  Chunks at this depth are no longer
+     * split, which can only happen if many keys share the same hash.
+     */
+    private static final int MAX_DEPTH = 24;
+
+    /**
+     * The entries of the map while it has never been copied, or
+     * {@code null} once they have been split into chunks.
+     */
+    private LongHashMap<V> flat;
+    /**
+     * The chunks, indexed by the top {@link #depth} bits of the hash of
+     * a key.  A chunk of depth {@code d} fills the
+     * {@code 1 << (depth - d)} consecutive slots whose indexes share its
+     * top {@code d} bits.
+     */
+    private Chunk<V>[] directory;
+    /**
+     * The number of hash bits used to index the directory.
+     */
+    private int depth;
+    /**
+     * Whether the directory is shared with a copy, and must be copied
+     * before it is modified.
+     */
+    private boolean directoryShared;
+    /**
+     * Identifies the chunks this map may modify in place.  Replaced on
+     * every copy, so that neither map modifies a chunk they share.
+     */
+    private Object owner = new Object();
+    /**
+     * Number of entries in the map.
+     */
+    private int size;
+
+    CopyOnWriteLongHashMap() {
+        clear();
+    }
+
+    private CopyOnWriteLongHashMap(Chunk<V>[] directory, int depth,
+                                   int size) {
+        this.directory = directory;
+        this.depth = depth;
+        this.directoryShared = true;
+        this.size = size;
+    }
+
+    int size() {
+        return flat != null ? flat.size() : size;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    boolean containsKey(long key) {
+        if (flat != null) {
+            return flat.containsKey(key);
+        }
+        return directory[slotOf(key)].map.containsKey(key);
+    }
+
+    V get(long key) {
+        if (flat != null) {
+            return flat.get(key);
+        }
+        return directory[slotOf(key)].map.get(key);
+    }
+
+    V put(long key, V value) {
+        if (flat != null) {
+            return flat.put(key, value);
+        }
+        if (value == null) {
+            throw new NullPointerException("The value must not be null");
+        }
+        int slot = slotOf(key);
+        Chunk<V> chunk = writable(slot);
+        V old = chunk.map.put(key, value);
+        if (old == null) {
+            size++;
+            if (chunk.map.size() > CHUNK_SIZE && chunk.depth < MAX_DEPTH) {
+                split(slot);
+            }
+        }
+        return old;
+    }
+
+    V remove(long key) {
+        if (flat != null) {
+            return flat.remove(key);
+        }
+        int slot = slotOf(key);
+        if (!directory[slot].map.containsKey(key)) {
+            return null;
+        }
+        size--;
+        return writable(slot).map.remove(key);
+    }
+
+    void clear() {
+        flat = new LongHashMap<V>();
+        directory = null;
+        depth = 0;
+        directoryShared = false;
+        size = 0;
+    }
+
+    /**
+     * Grows the map, if it has never been copied, so that it can hold the
+     * given number of entries without further resizing.  A map that has
+     * been copied grows a chunk at a time, and is left as it is.
+     */
+    void ensureCapacity(int expectedSize) {
+        if (flat != null) {
+            flat.ensureCapacity(expectedSize);
+        }
+    }
+
+    /**
+     * Returns a copy of the map, sharing all of its chunks.  Takes
+     * constant time, except that the first copy of a map first splits it
+     * into chunks.
+     */
+    CopyOnWriteLongHashMap<V> copy() {
+        if (flat != null) {
+            divide();
+        }
+        directoryShared = true;
+        owner = new Object();
+        return new CopyOnWriteLongHashMap<V>(directory, depth, size);
+    }
+
+    /**
+     * Returns a snapshot of the keys currently in the map.
+     */
+    long[] keys() {
+        if (flat != null) {
+            return flat.keys();
+        }
+        long[] result = new long[size];
+        int n = 0;
+        for (int slot = 0; slot < directory.length;
+             slot += 1 << (depth - directory[slot].depth)) {
+            long[] keys = directory[slot].map.keys();
+            System.arraycopy(keys, 0, result, n, keys.length);
+            n += keys.length;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the directory slot of the key.
+     */
+    private int slotOf(long key) {
+        return depth == 0 ? 0 : LongHashMap.mix(key) >>> (32 - depth);
+    }
+
+    /**
+     * Splits the entries of {@link #flat} into chunks of about half
+     * {@link #CHUNK_SIZE} entries each.
+     */
+    private void divide() {
+        depth = 0;
+        while (depth < MAX_DEPTH && (flat.size() >> depth) > CHUNK_SIZE / 2) {
+            depth++;
+        }
+        directory = newDirectory(1 << depth);
+        for (int slot = 0; slot < directory.length; slot++) {
+            directory[slot] = new Chunk<V>(
+                    new LongHashMap<V>(flat.size() >> depth), depth, owner);
+        }
+        for (long key : flat.keys()) {
+            directory[slotOf(key)].map.put(key, flat.get(key));
+        }
+        size = flat.size();
+        directoryShared = false;
+        flat = null;
+    }
+
+    /**
+     * Returns the chunk in the given slot, first replacing it with a copy
+     * if it is shared.
+     */
+    private Chunk<V> writable(int slot) {
+        Chunk<V> chunk = directory[slot];
+        if (chunk.owner == owner) {
+            return chunk;
+        }
+        Chunk<V> copy = new Chunk<V>(chunk.map.copy(), chunk.depth, owner);
+        fill(slot, copy);
+        return copy;
+    }
+
+    /**
+     * Splits the chunk in the given slot, which this map owns, into two
+     * chunks of the next depth.
+     */
+    private void split(int slot) {
+        Chunk<V> chunk = directory[slot];
+        if (chunk.depth == depth) {
+            Chunk<V>[] doubled = newDirectory(directory.length << 1);
+            for (int i = 0; i < doubled.length; i++) {
+                doubled[i] = directory[i >> 1];
+            }
+            directory = doubled;
+            directoryShared = false;
+            depth++;
+            slot <<= 1;
+        }
+
+        int bit = 31 - chunk.depth;
+        Chunk<V> low = new Chunk<V>(new LongHashMap<V>(), chunk.depth + 1, owner);
+        Chunk<V> high = new Chunk<V>(new LongHashMap<V>(), chunk.depth + 1, owner);
+        for (long key : chunk.map.keys()) {
+            Chunk<V> target = ((LongHashMap.mix(key) >>> bit) & 1) == 0 ? low : high;
+            target.map.put(key, chunk.map.get(key));
+        }
+
+        int span = 1 << (depth - low.depth);
+        int start = slot & ~((span << 1) - 1);
+        fill(start, low);
+        fill(start + span, high);
+    }
+
+    /**
+     * Puts the chunk in every slot of the directory that it covers,
+     * copying the directory first if it is shared.
+     */
+    private void fill(int slot, Chunk<V> chunk) {
+        if (directoryShared) {
+            directory = directory.clone();
+            directoryShared = false;
+        }
+        int span = 1 << (depth - chunk.depth);
+        int start = slot & ~(span - 1);
+        for (int i = start; i < start + span; i++) {
+            directory[i] = chunk;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Chunk<V>[] newDirectory(int length) {
+        return (Chunk<V>[]) new Chunk<?>[length];
+    }
+
+    /**
+     * A part of the map, owned by the map that may modify it.
+     */
+    private static final class Chunk<V> {
+        final LongHashMap<V> map;
+        final int depth;
+        final Object owner;
+
+        Chunk(LongHashMap<V> map, int depth, Object owner) {
+            this.map = map;
+            this.depth = depth;
+            this.owner = owner;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package net.java.dev.mocksgs;
+
+/**
+ * Assigns a cost, in nanoseconds of simulated time, to the data store
+ * operations that dominate the latency of a task in a real server. <p>
+ *
+ * Register a cost model with a {@link LatencyEstimator} to estimate how
+ * long each task would take in production, where an object that is not
+ * in the node's cache has to be fetched from the data store, each update
+ * takes a write lock, and every modified object is serialized and
+ * written back when the task commits.
+ */
+public interface CostModel {
+
+    /**
+     * Returns the cost of the first access by a task to an object.
+     *
+     * @param cached {@code true} if the object is in the node's cache
+     * @return the cost in nanoseconds
+     */
+    public long accessNanos(final boolean cached);
+
+    /**
+     * Returns the cost of retrieving or marking an object for update.
+     *
+     * @return the cost in nanoseconds
+     */
+    public long updateNanos();
+
+    /**
+     * Returns the cost of writing back an object that serializes to the
+     * given number of bytes.
+     *
+     * @param bytes the serialized size of the object
+     * @return the cost in nanoseconds
+     */
+    public long serializationNanos(final int bytes);
+}
@@ -0,0 +1,368 @@
+package net.java.dev.mocksgs;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.sgs.app.ManagedObject;
+
+/**
+ * Finds {@code ManagedObject}s that are held directly by other managed
+ * objects instead of through a {@code ManagedReference}. <p>
+ *
+ * Such an object is silently serialized as part of its parent, so it is
+ * duplicated in the parent's serialized form and its changes are lost or
+ * split between copies.  When a detector is attached to a
+ * {@link MockDataManager} with
+ * {@link MockDataManager#setEmbeddedObjectDetector}, each call to
+ * {@link MockDataManager#serializeDataStore} first writes every object it
+ * is about to serialize through a stream that watches for other managed
+ * objects.  For each one found, the detector records the path of fields,
+ * array and collection elements that reaches it from the root object,
+ * and the number of bytes it adds to the root's serialized form.  <p>
+ *
+ * A strict detector also fails the boundary with an
+ * {@code IllegalStateException}, before any object is serialized, if
+ * anything is found.
+ */
+public class EmbeddedObjectDetector {
+
+    private final boolean strict;
+    private final List<Embedding> embeddings = new ArrayList<Embedding>();
+
+    /**
+     * Creates a detector that only reports embedded objects.
+     */
+    public EmbeddedObjectDetector() {
+        this(false);
+    }
+
+    /**
+     * Creates a detector.
+     *
+     * @param strict {@code true} to fail the transaction boundary if an
+     *        embedded object is found
+     */
+    public EmbeddedObjectDetector(boolean strict) {
+        this.strict = strict;
+    }
+
+    /**
+     * Returns whether an embedded object fails the transaction boundary.
+     *
+     * @return {@code true} if the detector is strict
+     */
+    public boolean isStrict() {
+        return strict;
+    }
+
+    /**
+     * Returns every embedded object found so far, in the order found.
+     *
+     * @return list of embedded objects
+     */
+    public List<Embedding> getEmbeddings() {
+        return Collections.unmodifiableList(embeddings);
+    }
+
+    /**
+     * Forgets the embedded objects found so far.
+     */
+    public void reset() {
+        embeddings.clear();
+    }
+
+    /**
+     * Returns one line for each embedded object found so far.
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append(embeddings.size()).append(" embedded managed objects");
+        for (Embedding embedding : embeddings) {
+            text.append('\n').append(embedding);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Finds the managed objects embedded in the root object and records
+     * them.
+     *
+     * @param id the id of the root object
+     * @param root the root object
+     * @return the embedded objects found
+     * @throws IOException if the root object cannot be serialized
+     */
+    List<Embedding> analyze(long id, ManagedObject root) throws IOException {
+        DetectingStream full = DetectingStream.write(root, null);
+        if (full.found.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<Embedding> found = new ArrayList<Embedding>(full.found.size());
+        for (Object embedded : full.found) {
+            found.add(new Embedding(BigInteger.valueOf(id), root.getClass(),
+                                    embedded.getClass(),
+                                    findPath(root, embedded),
+                                    addedBytes(root, embedded, full.size())));
+        }
+        embeddings.addAll(found);
+        return found;
+    }
+
+    /**
+     * Returns the bytes that the embedded object adds to the serialized
+     * form of the root, measured by serializing the root again with the
+     * embedded object replaced by {@code null}.  If the root cannot be
+     * serialized that way, the size of the embedded object serialized on
+     * its own is returned instead.
+     */
+    private static long addedBytes(ManagedObject root, Object embedded,
+                                   long fullSize) {
+        try {
+            return fullSize - DetectingStream.write(root, embedded).size();
+        } catch (Exception e) {
+            try {
+                return DetectingStream.write(embedded, null).size();
+            } catch (IOException e2) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Searches breadth first from the root for the target object through
+     * non-transient fields, array elements, collection elements and map
+     * keys and values.
+     *
+     * @return the shortest path found, or {@code null} if the target is
+     *         only reachable through custom serialization code
+     */
+    private static String findPath(Object root, Object target) {
+        Map<Object, Boolean> visited = new IdentityHashMap<Object, Boolean>();
+        LinkedList<Object> objects = new LinkedList<Object>();
+        LinkedList<String> paths = new LinkedList<String>();
+        visited.put(root, Boolean.TRUE);
+        objects.add(root);
+        paths.add(root.getClass().getSimpleName());
+
+        while (!objects.isEmpty()) {
+            Object object = objects.removeFirst();
+            String path = paths.removeFirst();
+            if (object == target) {
+                return path;
+            }
+
+            List<Object> children = new ArrayList<Object>();
+            List<String> names = new ArrayList<String>();
+            addChildren(object, path, children, names);
+            for (int i = 0; i < children.size(); i++) {
+                Object child = children.get(i);
+                if (child != null && !visited.containsKey(child)) {
+                    visited.put(child, Boolean.TRUE);
+                    objects.add(child);
+                    paths.add(names.get(i));
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void addChildren(Object object, String path,
+                                    List<Object> children,
+                                    List<String> names) {
+        Class<?> type = object.getClass();
+        if (type.isArray()) {
+            if (!type.getComponentType().isPrimitive()) {
+                Object[] array = (Object[]) object;
+                for (int i = 0; i < array.length; i++) {
+                    children.add(array[i]);
+                    names.add(path + "[" + i + "]");
+                }
+            }
+        } else if (object instanceof Map) {
+            int i = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet()) {
+                children.add(entry.getKey());
+                names.add(path + ".keys[" + i++ + "]");
+                children.add(entry.getValue());
+                names.add(path + "[" + entry.getKey() + "]");
+            }
+        } else if (object instanceof Collection) {
+            int i = 0;
+            for (Object element : (Collection<?>) object) {
+                children.add(element);
+                names.add(path + "[" + i++ + "]");
+            }
+        } else if (!type.getName().startsWith("java.")) {
+            for (Class<?> c = type; c != null && c != Object.class;
+                 c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) ||
+                            Modifier.isTransient(modifiers) ||
+                            field.getType().isPrimitive()) {
+                        continue;
+                    }
+                    try {
+                        field.setAccessible(true);
+                        children.add(field.get(object));
+                        names.add(path + "." + field.getName());
+                    } catch (Exception e) {
+                        // inaccessible fields are not searched
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A managed object found inside another managed object.
+     */
+    public static final class Embedding {
+        private final BigInteger rootId;
+        private final Class<?> rootClass;
+        private final Class<?> embeddedClass;
+        private final String path;
+        private final long bytes;
+
+        Embedding(BigInteger rootId, Class<?> rootClass,
+                  Class<?> embeddedClass, String path, long bytes) {
+            this.rootId = rootId;
+            this.rootClass = rootClass;
+            this.embeddedClass = embeddedClass;
+            this.path = path;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Returns the id of the object in the data store that holds the
+         * embedded object.
+         *
+         * @return the id of the root object
+         */
+        public BigInteger getRootId() {
+            return rootId;
+        }
+
+        /**
+         * Returns the class of the object in the data store that holds the
+         * embedded object.
+         *
+         * @return the class of the root object
+         */
+        public Class<?> getRootClass() {
+            return rootClass;
+        }
+
+        /**
+         * Returns the class of the embedded object.
+         *
+         * @return the class of the embedded object
+         */
+        public Class<?> getEmbeddedClass() {
+            return embeddedClass;
+        }
+
+        /**
+         * Returns the path from the root object to the embedded object,
+         * such as {@code Player.inventory[2].item}.
+         *
+         * @return the path, or {@code null} if the embedded object is
+         *         only reachable through custom serialization code
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Returns the number of bytes the embedded object adds to the
+         * serialized form of the root object.
+         *
+         * @return the added size in bytes, or {@code -1} if unknown
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return embeddedClass.getName() + " embedded in " +
+                   rootClass.getName() + " " + rootId + " at " +
+                   (path == null ? "an unknown path" : path) +
+                   " (" + bytes + " bytes)";
+        }
+    }
+
+    /**
+     * Counts the bytes written to it and discards them.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * Serializes an object, collecting the managed objects written inside
+     * it and optionally replacing one of them with {@code null}.
+     */
+    private static final class DetectingStream extends ObjectOutputStream {
+        private final CountingOutputStream counter;
+        private final Object root;
+        private final Object omitted;
+        final List<Object> found = new ArrayList<Object>();
+
+        private DetectingStream(CountingOutputStream counter, Object root,
+                                Object omitted) throws IOException {
+            super(counter);
+            this.counter = counter;
+            this.root = root;
+            this.omitted = omitted;
+            enableReplaceObject(true);
+        }
+
+        static DetectingStream write(Object root, Object omitted)
+                throws IOException {
+            DetectingStream stream = new DetectingStream(
+                    new CountingOutputStream(), root, omitted);
+            stream.writeObject(root);
+            stream.close();
+            return stream;
+        }
+
+        long size() {
+            return counter.count;
+        }
+
+        @Override
+        protected Object replaceObject(Object object) {
+            if (object != root && object instanceof ManagedObject) {
+                if (object == omitted) {
+                    return null;
+                }
+                found.add(object);
+            }
+            return object;
+        }
+    }
+}
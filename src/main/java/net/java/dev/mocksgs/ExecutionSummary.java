@@ -0,0 +1,88 @@
+package net.java.dev.mocksgs;
+
+/**
+ * What a batch of tasks run by {@link MockTaskManager#executeUntil},
+ * {@link MockTaskManager#drainCurrentTick} or
+ * {@link MockTaskManager#executeTasks} did.
+ */
+public class ExecutionSummary {
+
+    private final int tasksRun;
+    private final int retries;
+    private final int failures;
+    private final boolean budgetExhausted;
+    private final long wallNanos;
+
+    ExecutionSummary(int tasksRun, int retries, int failures,
+                     boolean budgetExhausted, long wallNanos) {
+        this.tasksRun = tasksRun;
+        this.retries = retries;
+        this.failures = failures;
+        this.budgetExhausted = budgetExhausted;
+        this.wallNanos = wallNanos;
+    }
+
+    /**
+     * Returns the number of times a task was run, including runs that
+     * failed.
+     *
+     * @return the number of tasks run
+     */
+    public int getTasksRun() {
+        return tasksRun;
+    }
+
+    /**
+     * Returns the number of runs that completed successfully.
+     *
+     * @return the number of tasks completed
+     */
+    public int getTasksCompleted() {
+        return tasksRun - retries - failures;
+    }
+
+    /**
+     * Returns the number of runs that failed and were rescheduled because
+     * the task asked to be retried.
+     *
+     * @return the number of retries
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Returns the number of runs that failed and were not retried.
+     *
+     * @return the number of failures
+     */
+    public int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Returns whether the batch stopped because its task or wall-clock
+     * budget was used up while tasks were still due.
+     *
+     * @return {@code true} if the batch stopped early
+     */
+    public boolean isBudgetExhausted() {
+        return budgetExhausted;
+    }
+
+    /**
+     * Returns the wall-clock time the batch took.
+     *
+     * @return the time in nanoseconds
+     */
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    @Override
+    public String toString() {
+        return tasksRun + " tasks run, " + retries + " retried, " +
+               failures + " failed" +
+               (budgetExhausted ? ", budget exhausted" : "");
+    }
+}
@@ -0,0 +1,316 @@
+package net.java.dev.mocksgs;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sun.sgs.app.ManagedObject;
+
+/**
+ * A {@link SerializationCodec} built on Java serialization that avoids
+ * most of its per-object overhead. <p>
+ *
+ * Class descriptors are written once per codec as a small integer index
+ * rather than being written out in full for every object, and top level
+ * {@code Externalizable} objects are written directly through
+ * {@code writeExternal} and recreated through their public no-argument
+ * constructor.  References from such an object back to itself are
+ * written as a marker that is resolved to the object when it is read.
+ * Objects that declare {@code writeReplace} or {@code readResolve}
+ * always use standard serialization.  <p>
+ *
+ * The encoded form can only be read by the same codec instance that
+ * wrote it.
+ */
+public class FastSerializationCodec implements SerializationCodec {
+
+    /**
+     * Marks an object written with standard serialization.
+     */
+    private static final int SERIAL = 0;
+    /**
+     * Marks an object written through {@code writeExternal}.
+     */
+    private static final int EXTERNAL = 1;
+    /**
+     * Cached in place of a constructor for classes that cannot use the
+     * {@code Externalizable} fast path.
+     */
+    private static final Object NO_FAST_PATH = new Object();
+
+    /**
+     * Maps each class written by this codec to its descriptor index.
+     */
+    private final Map<Class<?>, Integer> classIndex =
+            new ConcurrentHashMap<Class<?>, Integer>();
+    /**
+     * The class descriptors written by this codec, in index order.
+     */
+    private final List<ObjectStreamClass> descriptors =
+            new ArrayList<ObjectStreamClass>();
+    /**
+     * The constructor used to recreate each {@code Externalizable} class,
+     * or {@code NO_FAST_PATH}.
+     */
+    private final Map<Class<?>, Object> constructors =
+            new ConcurrentHashMap<Class<?>, Object>();
+
+    @Override
+    public ObjectOutputStream createOutputStream(final OutputStream out)
+            throws IOException {
+        return new CachingOutputStream(out);
+    }
+
+    @Override
+    public ObjectInputStream createInputStream(final InputStream in)
+            throws IOException {
+        return new CachingInputStream(in);
+    }
+
+    @Override
+    public void writeObject(final ObjectOutputStream out,
+                            final ManagedObject object) throws IOException {
+        Class<?> type = object.getClass();
+        if (out instanceof CachingOutputStream &&
+                externalConstructor(type) != null) {
+            out.writeByte(EXTERNAL);
+            out.writeInt(indexOf(ObjectStreamClass.lookup(type)));
+            ((CachingOutputStream) out).writeRoot((Externalizable) object);
+        } else {
+            out.writeByte(SERIAL);
+            out.writeObject(object);
+        }
+    }
+
+    @Override
+    public ManagedObject readObject(final ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        int kind = in.readByte();
+        if (kind == SERIAL) {
+            return (ManagedObject) in.readObject();
+        }
+
+        Class<?> type = descriptor(in.readInt()).forClass();
+        Constructor<?> constructor = externalConstructor(type);
+        if (constructor == null) {
+            throw new InvalidClassException(
+                    type.getName(), "Not a plain Externalizable class");
+        }
+        Externalizable object;
+        try {
+            object = (Externalizable) constructor.newInstance();
+        } catch (InstantiationException e) {
+            throw (IOException) new InvalidClassException(
+                    type.getName(), "Unable to create instance").initCause(e);
+        } catch (IllegalAccessException e) {
+            throw (IOException) new InvalidClassException(
+                    type.getName(), "Unable to create instance").initCause(e);
+        } catch (InvocationTargetException e) {
+            throw (IOException) new InvalidClassException(
+                    type.getName(), "Unable to create instance")
+                    .initCause(e.getCause());
+        }
+        ((CachingInputStream) in).readRoot(object);
+        return (ManagedObject) object;
+    }
+
+    /**
+     * Returns the index of the descriptor, registering it if it has not
+     * been written before.
+     */
+    private int indexOf(ObjectStreamClass desc) {
+        Class<?> type = desc.forClass();
+        Integer index = classIndex.get(type);
+        if (index == null) {
+            synchronized (descriptors) {
+                index = classIndex.get(type);
+                if (index == null) {
+                    index = descriptors.size();
+                    descriptors.add(desc);
+                    classIndex.put(type, index);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the descriptor registered with the index.
+     */
+    private ObjectStreamClass descriptor(int index) throws IOException {
+        synchronized (descriptors) {
+            if (index < 0 || index >= descriptors.size()) {
+                throw new InvalidClassException(
+                        "Unknown class descriptor index: " + index);
+            }
+            return descriptors.get(index);
+        }
+    }
+
+    /**
+     * Returns the constructor used to recreate instances of the class
+     * through the {@code Externalizable} fast path, or {@code null} if
+     * the class must use standard serialization.
+     */
+    private Constructor<?> externalConstructor(Class<?> type) {
+        Object constructor = constructors.get(type);
+        if (constructor == null) {
+            constructor = findExternalConstructor(type);
+            constructors.put(type, constructor);
+        }
+        return constructor == NO_FAST_PATH ? null
+                                           : (Constructor<?>) constructor;
+    }
+
+    private static Object findExternalConstructor(Class<?> type) {
+        if (!Externalizable.class.isAssignableFrom(type) ||
+                hasMethod(type, "writeReplace") ||
+                hasMethod(type, "readResolve")) {
+            return NO_FAST_PATH;
+        }
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor();
+            if (!Modifier.isPublic(constructor.getModifiers())) {
+                return NO_FAST_PATH;
+            }
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (NoSuchMethodException e) {
+            return NO_FAST_PATH;
+        } catch (SecurityException e) {
+            return NO_FAST_PATH;
+        }
+    }
+
+    /**
+     * Checks whether the class or one of its superclasses declares a
+     * method with the given name and no parameters.
+     */
+    private static boolean hasMethod(Class<?> type, String name) {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod(name);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // keep looking in the superclass
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stands in for the {@code Externalizable} object being written
+     * through {@code writeExternal} wherever it refers to itself.
+     */
+    private static final class RootReference implements Serializable {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Writes class descriptors as their index in the codec.
+     */
+    private class CachingOutputStream extends ObjectOutputStream {
+
+        /**
+         * The object being written through {@code writeExternal}, or
+         * {@code null}.
+         */
+        private Object root;
+        /**
+         * Written in place of each reference to {@link #root}.
+         */
+        private RootReference rootReference;
+
+        CachingOutputStream(OutputStream out) throws IOException {
+            super(out);
+            enableReplaceObject(true);
+        }
+
+        /**
+         * Writes the object through {@code writeExternal}, replacing its
+         * references to itself with a marker.
+         */
+        void writeRoot(Externalizable object) throws IOException {
+            root = object;
+            rootReference = new RootReference();
+            try {
+                object.writeExternal(this);
+            } finally {
+                root = null;
+                rootReference = null;
+            }
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) {
+            return obj != null && obj == root ? rootReference : obj;
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc)
+                throws IOException {
+            writeInt(indexOf(desc));
+        }
+    }
+
+    /**
+     * Reads class descriptors written as their index in the codec.
+     */
+    private class CachingInputStream extends ObjectInputStream {
+
+        /**
+         * The object being read through {@code readExternal}, or
+         * {@code null}.
+         */
+        private Object root;
+
+        CachingInputStream(InputStream in) throws IOException {
+            super(in);
+            enableResolveObject(true);
+        }
+
+        /**
+         * Reads the object through {@code readExternal}, resolving the
+         * markers written for its references to itself.
+         */
+        void readRoot(Externalizable object)
+                throws IOException, ClassNotFoundException {
+            root = object;
+            try {
+                object.readExternal(this);
+            } finally {
+                root = null;
+            }
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) {
+            return obj instanceof RootReference ? root : obj;
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException {
+            return descriptor(readInt());
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException {
+            Class<?> type = desc.forClass();
+            return type != null ? type : super.resolveClass(desc);
+        }
+    }
+}
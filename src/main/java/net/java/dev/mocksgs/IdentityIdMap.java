@@ -0,0 +1,188 @@
+package net.java.dev.mocksgs;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.sun.sgs.app.ManagedObject;
+
+/**
+ * Maps managed objects, by identity, to their ids, and can be copied in
+ * constant time. <p>
+ *
+ * Until it is first copied the map is a plain {@link IdentityHashMap}.
+ * The first {@link #copy} moves the entries into a
+ * {@link CopyOnWriteLongHashMap} keyed by the identity hash code of the
+ * object, each value being an immutable chain of the entries whose
+ * objects share that hash code.  A copy therefore shares everything with
+ * the original until either is modified, and then only copies the chunks
+ * that change.
+ */
+final class IdentityIdMap {
+
+    /**
+     * The entries of the map while it has never been copied, or
+     * {@code null} once they have been moved to {@link #entries}.
+     */
+    private IdentityHashMap<ManagedObject, Long> flat =
+            new IdentityHashMap<ManagedObject, Long>();
+    private CopyOnWriteLongHashMap<Entry> entries;
+    /**
+     * Number of objects in {@link #entries}.
+     */
+    private int size;
+
+    IdentityIdMap() {
+    }
+
+    private IdentityIdMap(CopyOnWriteLongHashMap<Entry> entries, int size) {
+        this.flat = null;
+        this.entries = entries;
+        this.size = size;
+    }
+
+    int size() {
+        return flat != null ? flat.size() : size;
+    }
+
+    boolean containsKey(Object object) {
+        return get(object) != null;
+    }
+
+    /**
+     * Returns the id of the object, or {@code null} if it is not in the
+     * map.
+     */
+    Long get(Object object) {
+        if (flat != null) {
+            return flat.get(object);
+        }
+        for (Entry e = entries.get(System.identityHashCode(object));
+             e != null; e = e.next) {
+            if (e.object == object) {
+                return e.id;
+            }
+        }
+        return null;
+    }
+
+    void put(ManagedObject object, long id) {
+        if (flat != null) {
+            flat.put(object, id);
+            return;
+        }
+        long hash = System.identityHashCode(object);
+        Entry chain = entries.get(hash);
+        Entry rest = without(chain, object);
+        if (rest == chain) {
+            size++;
+        }
+        entries.put(hash, new Entry(object, id, rest));
+    }
+
+    void remove(Object object) {
+        if (flat != null) {
+            flat.remove(object);
+            return;
+        }
+        long hash = System.identityHashCode(object);
+        Entry chain = entries.get(hash);
+        Entry rest = without(chain, object);
+        if (rest == chain) {
+            return;
+        }
+        size--;
+        if (rest == null) {
+            entries.remove(hash);
+        } else {
+            entries.put(hash, rest);
+        }
+    }
+
+    void clear() {
+        flat = new IdentityHashMap<ManagedObject, Long>();
+        entries = null;
+        size = 0;
+    }
+
+    /**
+     * Grows the map, if it has never been copied, so that it can hold the
+     * given number of objects without further resizing.  Growing means
+     * copying the map, so it is only worth doing when the map would
+     * otherwise be resized more than once.
+     */
+    void ensureCapacity(int expectedSize) {
+        if (flat != null && expectedSize > 2 * flat.size()) {
+            IdentityHashMap<ManagedObject, Long> grown =
+                    new IdentityHashMap<ManagedObject, Long>(expectedSize);
+            grown.putAll(flat);
+            flat = grown;
+        }
+    }
+
+    /**
+     * Returns a copy of the map.  Takes constant time, except that the
+     * first copy of a map first moves its entries into chains.
+     */
+    IdentityIdMap copy() {
+        if (flat != null) {
+            entries = new CopyOnWriteLongHashMap<Entry>();
+            for (Map.Entry<ManagedObject, Long> e : flat.entrySet()) {
+                long hash = System.identityHashCode(e.getKey());
+                entries.put(hash, new Entry(e.getKey(), e.getValue(),
+                                            entries.get(hash)));
+            }
+            size = flat.size();
+            flat = null;
+        }
+        return new IdentityIdMap(entries.copy(), size);
+    }
+
+    /**
+     * Returns a snapshot of the objects currently in the map.
+     */
+    Set<ManagedObject> keySet() {
+        Set<ManagedObject> objects = Collections.newSetFromMap(
+                new IdentityHashMap<ManagedObject, Boolean>(size()));
+        if (flat != null) {
+            objects.addAll(flat.keySet());
+            return objects;
+        }
+        for (long hash : entries.keys()) {
+            for (Entry e = entries.get(hash); e != null; e = e.next) {
+                objects.add(e.object);
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * Returns the chain without the entry for the object, sharing as much
+     * of it as possible, or the chain itself if it has no such entry.
+     */
+    private static Entry without(Entry chain, Object object) {
+        for (Entry e = chain; e != null; e = e.next) {
+            if (e.object == object) {
+                Entry rest = e.next;
+                for (Entry p = chain; p != e; p = p.next) {
+                    rest = new Entry(p.object, p.id, rest);
+                }
+                return rest;
+            }
+        }
+        return chain;
+    }
+
+    private static final class Entry {
+        final ManagedObject object;
+        final long id;
+        final Entry next;
+
+        Entry(ManagedObject object, long id, Entry next) {
+            this.object = object;
+            this.id = id;
+            this.next = next;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package net.java.dev.mocksgs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import com.sun.sgs.app.ManagedObject;
+
+/**
+ * The default {@link SerializationCodec}, which uses standard Java
+ * serialization exactly as the darkstar data store does.
+ */
+public class JdkSerializationCodec implements SerializationCodec {
+
+    @Override
+    public ObjectOutputStream createOutputStream(final OutputStream out)
+            throws IOException {
+        return new ObjectOutputStream(out);
+    }
+
+    @Override
+    public ObjectInputStream createInputStream(final InputStream in)
+            throws IOException {
+        return new ObjectInputStream(in);
+    }
+
+    @Override
+    public void writeObject(final ObjectOutputStream out,
+                            final ManagedObject object) throws IOException {
+        out.writeObject(object);
+    }
+
+    @Override
+    public ManagedObject readObject(final ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        return (ManagedObject) in.readObject();
+    }
+}
@@ -0,0 +1,272 @@
+package net.java.dev.mocksgs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Estimates how long each task would take in production, by charging the
+ * costs of a {@link CostModel} for the data store operations the task
+ * performs. <p>
+ *
+ * Costs are charged while the estimator is set with
+ * {@link MockDataManager#setLatencyEstimator}:
+ * <ul>
+ * <li>for the first access by a task to each object, at the cost of a
+ * cache hit or miss.  The node's cache is simulated as a least recently
+ * used set of object ids of a fixed capacity;</li>
+ * <li>for each {@code getForUpdate}, {@code getBindingForUpdate} and
+ * {@code markForUpdate};</li>
+ * <li>for the serialized size of each object created or updated, once
+ * the changes are written back by {@link MockDataManager#commit} or
+ * {@link MockDataManager#serializeDataStore}.  Changes undone by
+ * {@link MockDataManager#abort} are not charged.</li>
+ * </ul>
+ *
+ * The {@link MockTaskManager} calls {@link #beginTask} before it runs
+ * each task, so after a task has run {@link #getTaskNanos} is its
+ * estimated latency.  If the estimator advances the clock, the task
+ * manager also moves its mock time forward by that latency.  An
+ * estimator is not thread safe, but the data manager only updates it
+ * while holding its own lock.
+ */
+public class LatencyEstimator {
+
+    private final CostModel costModel;
+    private final boolean advancingClock;
+    private int cacheCapacity;
+    /**
+     * The ids of the objects in the simulated cache, least recently used
+     * first.  The values are unused.
+     */
+    private final LinkedHashMap<Long, Boolean> cache;
+    /**
+     * The objects accessed by the current task.
+     */
+    private LongHashMap<Boolean> accessed = new LongHashMap<Boolean>();
+    /**
+     * The objects created or updated and not yet written back.
+     */
+    private LongHashMap<Boolean> pendingWrites = new LongHashMap<Boolean>();
+
+    private long taskNanos;
+    private long totalNanos;
+    private long maxTaskNanos;
+    private long tasks;
+    private long cacheHits;
+    private long cacheMisses;
+
+    /**
+     * Creates an estimator using the default {@link SimpleCostModel} and
+     * a cache of 10000 objects, which does not advance the clock.
+     */
+    public LatencyEstimator() {
+        this(new SimpleCostModel(), 10000, false);
+    }
+
+    /**
+     * Creates an estimator.
+     *
+     * @param costModel the costs to charge
+     * @param cacheCapacity the number of objects the simulated cache holds
+     * @param advancingClock if {@code true}, the task manager advances its
+     *        mock time by the estimated latency of each task
+     */
+    public LatencyEstimator(CostModel costModel, int cacheCapacity,
+                            boolean advancingClock) {
+        if (costModel == null) {
+            throw new NullPointerException("The cost model must not be null");
+        }
+        if (cacheCapacity < 0) {
+            throw new IllegalArgumentException(
+                    "Cache capacity must not be negative: " + cacheCapacity);
+        }
+        this.costModel = costModel;
+        this.cacheCapacity = cacheCapacity;
+        this.advancingClock = advancingClock;
+        this.cache = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> e) {
+                return size() > LatencyEstimator.this.cacheCapacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the cost model.
+     *
+     * @return the cost model
+     */
+    public CostModel getCostModel() {
+        return costModel;
+    }
+
+    /**
+     * Returns whether the task manager advances its mock time by the
+     * estimated latency of each task.
+     *
+     * @return {@code true} if the clock is advanced
+     */
+    public boolean isAdvancingClock() {
+        return advancingClock;
+    }
+
+    /**
+     * Starts charging the costs of a new task.
+     */
+    public void beginTask() {
+        accessed = new LongHashMap<Boolean>();
+        taskNanos = 0;
+        tasks++;
+    }
+
+    /**
+     * Returns the estimated latency of the current or last task.
+     *
+     * @return the latency in nanoseconds
+     */
+    public long getTaskNanos() {
+        return taskNanos;
+    }
+
+    /**
+     * Returns the largest estimated latency of any task.
+     *
+     * @return the latency in nanoseconds
+     */
+    public long getMaxTaskNanos() {
+        return maxTaskNanos;
+    }
+
+    /**
+     * Returns the total of all of the costs charged.
+     *
+     * @return the total in nanoseconds
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Returns the number of times {@link #beginTask} has been called.
+     *
+     * @return the number of tasks
+     */
+    public long getTaskCount() {
+        return tasks;
+    }
+
+    /**
+     * Returns the mean estimated latency of the tasks.
+     *
+     * @return the mean latency in nanoseconds, or {@code 0} if no task
+     *         has begun
+     */
+    public long getMeanTaskNanos() {
+        return tasks == 0 ? 0 : totalNanos / tasks;
+    }
+
+    /**
+     * Returns the number of first accesses that found the object in the
+     * simulated cache.
+     *
+     * @return the number of cache hits
+     */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * Returns the number of first accesses that did not find the object in
+     * the simulated cache.
+     *
+     * @return the number of cache misses
+     */
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * Clears the simulated cache and every cost charged.
+     */
+    public void reset() {
+        cache.clear();
+        accessed = new LongHashMap<Boolean>();
+        pendingWrites = new LongHashMap<Boolean>();
+        taskNanos = 0;
+        totalNanos = 0;
+        maxTaskNanos = 0;
+        tasks = 0;
+        cacheHits = 0;
+        cacheMisses = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%d tasks, mean %d ns, max %d ns, cache %d hits %d misses",
+                tasks, getMeanTaskNanos(), maxTaskNanos,
+                cacheHits, cacheMisses);
+    }
+
+    /**
+     * Charges for an access to an object, if it is the task's first.
+     */
+    void objectAccessed(long id) {
+        if (accessed.containsKey(id)) {
+            return;
+        }
+        accessed.put(id, Boolean.TRUE);
+        boolean cached = cache.get(id) != null;
+        if (cached) {
+            cacheHits++;
+        } else {
+            cacheMisses++;
+            cache.put(id, Boolean.TRUE);
+        }
+        charge(costModel.accessNanos(cached));
+    }
+
+    /**
+     * Charges for an update to an object.
+     */
+    void objectUpdated(long id) {
+        objectAccessed(id);
+        pendingWrites.put(id, Boolean.TRUE);
+        charge(costModel.updateNanos());
+    }
+
+    /**
+     * Records an object created by the task, which is written back along
+     * with the objects it updated.
+     */
+    void objectCreated(long id) {
+        accessed.put(id, Boolean.TRUE);
+        cache.put(id, Boolean.TRUE);
+        pendingWrites.put(id, Boolean.TRUE);
+    }
+
+    /**
+     * Returns the ids of the objects waiting to be written back, and
+     * forgets them.
+     */
+    long[] takePendingWrites() {
+        long[] ids = pendingWrites.keys();
+        pendingWrites.clear();
+        return ids;
+    }
+
+    /**
+     * Charges for writing back an object.
+     */
+    void objectWritten(int bytes) {
+        charge(costModel.serializationNanos(bytes));
+    }
+
+    private void charge(long nanos) {
+        taskNanos += nanos;
+        totalNanos += nanos;
+        maxTaskNanos = Math.max(maxTaskNanos, taskNanos);
+    }
+}
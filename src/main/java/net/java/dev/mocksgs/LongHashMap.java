@@ -0,0 +1,205 @@
+package net.java.dev.mocksgs;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map keyed by primitive {@code long} values. <p>
+ *
+ * Keys are stored unboxed in a flat array and collisions are resolved by
+ * linear probing, so lookups never allocate.  A slot is considered empty
+ * when its value is {@code null}, so {@code null} values are not
+ * permitted.
+ *
+ * @param <V> the type of the values held by the map
+ */
+final class LongHashMap<V> {
+
+    /**
+     * The smallest table size that will be allocated.
+     */
+    private static final int MIN_CAPACITY = 16;
+    /**
+     * Keys of the map, indexed by slot.
+     */
+    private long[] keys;
+    /**
+     * Values of the map, indexed by slot.  A {@code null} value marks
+     * an empty slot.
+     */
+    private Object[] values;
+    /**
+     * Number of entries in the map.
+     */
+    private int size;
+    /**
+     * Number of entries at which the table will be grown.
+     */
+    private int threshold;
+
+    LongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    LongHashMap(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean containsKey(long key) {
+        return values[indexOf(key)] != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        return (V) values[indexOf(key)];
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("The value must not be null");
+        }
+        int i = indexOf(key);
+        Object old = values[i];
+        values[i] = value;
+        if (old == null) {
+            keys[i] = key;
+            if (++size > threshold) {
+                resize(values.length << 1);
+            }
+        }
+        return (V) old;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int i = indexOf(key);
+        Object old = values[i];
+        if (old == null) {
+            return null;
+        }
+        size--;
+
+        // Shift back any following entries that probed past this slot
+        // so that no tombstones are required.
+        int mask = values.length - 1;
+        int gap = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == null) {
+                break;
+            }
+            int home = mix(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        values[gap] = null;
+        return (V) old;
+    }
+
+    void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Grows the table, if necessary, so that it can hold the given number
+     * of entries without further resizing.
+     */
+    void ensureCapacity(int expectedSize) {
+        int capacity = tableSizeFor(expectedSize);
+        if (capacity > values.length) {
+            resize(capacity);
+        }
+    }
+
+    /**
+     * Returns a shallow copy of the map.
+     */
+    LongHashMap<V> copy() {
+        LongHashMap<V> copy = new LongHashMap<V>(0);
+        copy.keys = keys.clone();
+        copy.values = values.clone();
+        copy.size = size;
+        copy.threshold = threshold;
+        return copy;
+    }
+
+    /**
+     * Returns a snapshot of the keys currently in the map.
+     */
+    long[] keys() {
+        long[] result = new long[size];
+        int n = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                result[n++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the slot holding the key, or the empty slot at which the
+     * key would be inserted.
+     */
+    private int indexOf(long key) {
+        int mask = values.length - 1;
+        int i = mix(key) & mask;
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int j = indexOf(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        threshold = (int) (capacity * 0.75f);
+    }
+
+    /**
+     * Returns a power of two table size with room for the given number
+     * of entries at the maximum load factor.
+     */
+    private static int tableSizeFor(int expectedSize) {
+        long needed = Math.max(MIN_CAPACITY, (long) (expectedSize / 0.75f) + 1);
+        int capacity = MIN_CAPACITY;
+        while (capacity < needed && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Spreads sequential ids across the table.
+     */
+    static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
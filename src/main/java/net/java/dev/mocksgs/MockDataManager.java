@@ -1,19 +1,42 @@
 package net.java.dev.mocksgs;
 
+import java.util.AbstractList;
 import java.util.Map;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 import java.util.Set;
-import java.io.Serializable;
+import java.util.TreeMap;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.ObjectOutputStream;
-import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.math.BigInteger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.sun.sgs.app.DataManager;
 import com.sun.sgs.app.ManagedObject;
@@ -21,6 +44,7 @@ import com.sun.sgs.app.ManagedObjectRemoval;
 import com.sun.sgs.app.ManagedReference;
 import com.sun.sgs.app.NameNotBoundException;
 import com.sun.sgs.app.ObjectNotFoundException;
+import com.sun.sgs.app.TransactionConflictException;
 
 /**
  * Mock's darkstar's DataManager interface so that it behaves as
@@ -29,154 +53,489 @@ import com.sun.sgs.app.ObjectNotFoundException;
  * When writing tests using this Manager, a transaction boundary can
  * be simulated by calling the {@link MockDataManager#serializeDataStore}
  * method.  This will serialize each object in the store, and then
- * deserialize them, getting a fresh, separate copy of each object.
+ * deserialize them, getting a fresh, separate copy of each object. <p>
+ *
+ * Transactions can also be demarcated explicitly with {@link #begin},
+ * {@link #commit} and {@link #abort}.  Each thread has its own
+ * transaction, and in {@link #setConcurrent concurrent} mode several
+ * threads may run transactions against the data store at once, with
+ * conflicting transactions failing at commit.
  */
 public class MockDataManager implements DataManager {
 
     /**
      * This is the master counter used to assign new ids to
-     * every {@code ManagedReference} that is created.
+     * every {@code ManagedReference} that is created.  Ids are kept
+     * as primitive {@code long}s internally and are only converted to
+     * {@code BigInteger} at the {@code DataManager} API edge.
+     */
+    private static final AtomicLong masterId = new AtomicLong();
+    /**
+     * Identifies a data store image written by {@link #exportImage}.
+     */
+    private static final int IMAGE_MAGIC = 0x4D534753;
+    /**
+     * The version of the data store image format.
+     */
+    private static final int IMAGE_VERSION = 1;
+    /**
+     * Worker threads used for parallel serialization, shared by every
+     * data manager.  The threads are daemons and exit once idle, so a
+     * data manager never needs to shut the pool down.
+     */
+    private static final ExecutorService serializationPool =
+        Executors.newCachedThreadPool(new SerializationThreadFactory());
+    /**
+     * The reference epoch while references must not cache objects.
      */
-    private static BigInteger masterId = BigInteger.ZERO;
+    static final long NO_EPOCH = -1;
     /**
      * This is the main representation of the Data Store as a map
      * of ids to {@code ManagedObject}s.
      */
-    private Map<BigInteger, ManagedObject> store =
-            new HashMap<BigInteger, ManagedObject>();
+    private CopyOnWriteLongHashMap<ManagedObject> store =
+            new CopyOnWriteLongHashMap<ManagedObject>();
     /**
-     * This maps maintains the name bindings from names to object ids.
+     * This maps maintains the name bindings from names to object ids,
+     * sorted by name so that {@link #nextBoundName} is a single
+     * O(log n) lookup.
      */
-    private Map<String, BigInteger> bindings =
-            new HashMap<String, BigInteger>();
+    private NavigableMap<String, Long> bindings =
+            new TreeMap<String, Long>();
     /**
      * Maps each ManagedObject to its associated id.
      */
-    private Map<ManagedObject, BigInteger> idMap =
-            new IdentityHashMap<ManagedObject, BigInteger>();
+    private IdentityIdMap idMap = new IdentityIdMap();
+    /**
+     * Tracks ManagedObjects that have been removed from the data store,
+     * without keeping them alive.
+     */
+    private TombstoneSet tombstones = new TombstoneSet(Integer.MAX_VALUE);
+    /**
+     * The ids of the objects in the data store, by exact class, or
+     * {@code null} if the index has not been built.  It is built the
+     * first time it is used, and kept up to date from then on.
+     */
+    private Map<Class<?>, CopyOnWriteLongHashMap<Boolean>> classIndex = null;
+    /**
+     * Objects that have been created or marked for update since the last
+     * call to {@link #serializeDataStore}, keyed by id.  Replaced rather
+     * than cleared at each boundary, so that its capacity, and the cost
+     * of copying it in {@link #fork}, follows the changes since then.
+     */
+    private LongHashMap<ManagedObject> dirty =
+            new LongHashMap<ManagedObject>();
+    /**
+     * If {@code true}, {@link #serializeDataStore} only serializes the
+     * objects that are dirty rather than the entire data store.
+     */
+    private boolean incrementalSerialization = false;
+    /**
+     * Number of threads used to serialize objects at a transaction
+     * boundary.
+     */
+    private int serializationParallelism = 1;
+    /**
+     * Encodes objects at each transaction boundary.
+     */
+    private SerializationCodec serializationCodec = new JdkSerializationCodec();
+    /**
+     * Per-thread buffers and streams reused across round-trips.
+     */
+    private ThreadLocal<SerializationContext> serializationContext =
+            newSerializationContext(serializationCodec);
+    /**
+     * Collects statistics about each transaction boundary, or
+     * {@code null} if profiling is disabled.
+     */
+    private SerializationProfile serializationProfile = null;
+    /**
+     * Checks each transaction boundary for managed objects embedded in
+     * other managed objects, or {@code null} if the check is disabled.
+     */
+    private EmbeddedObjectDetector embeddedObjectDetector = null;
+    /**
+     * Counts the accesses to each object and binding, or {@code null} if
+     * counting is disabled.
+     */
+    private AccessStatistics accessStatistics = null;
+    /**
+     * Charges simulated costs for each access, or {@code null} if latency
+     * is not being estimated.
+     */
+    private LatencyEstimator latencyEstimator = null;
+    /**
+     * How objects are held between transaction boundaries.
+     */
+    private StorageMode storageMode = StorageMode.HEAP;
+    /**
+     * The serialized form of each object that has not been retrieved
+     * since the last boundary, keyed by id.  An object is either in this
+     * map or in {@link #store}, never both.
+     */
+    private CopyOnWriteLongHashMap<ByteArena.Blob> serialized =
+            new CopyOnWriteLongHashMap<ByteArena.Blob>();
+    /**
+     * Holds the bytes of the serialized objects, or {@code null} if
+     * nothing has been stored serialized.
+     */
+    private ByteArena arena = null;
+    /**
+     * The number of bytes in the arena that belong to serialized objects,
+     * rather than to objects that have since been retrieved.
+     */
+    private long serializedBytes = 0;
+    /**
+     * Number of objects deserialized on first access since the count was
+     * last reset.
+     */
+    private long deserializationCount = 0;
+    /**
+     * If {@code true}, {@link #bindings} is shared with a fork and must be
+     * copied before it is modified.  The tables keyed by id copy
+     * themselves in chunks as they are modified.
+     */
+    private boolean bindingsShared = false;
+    /**
+     * If {@code true}, {@link #tombstones} is shared with a fork and must
+     * be copied before it is modified.
+     */
+    private boolean tombstonesShared = false;
+    /**
+     * Ids of the objects that belong to this data store alone, or
+     * {@code null} if it has never been forked.  Any other object is
+     * shared with a fork and is copied on first access.
+     */
+    private LongHashMap<ManagedObject> privateObjects = null;
+    /**
+     * The transaction active on each thread, if any.
+     */
+    private final ThreadLocal<TransactionContext> transaction =
+            new ThreadLocal<TransactionContext>();
+    /**
+     * If {@code true}, transactions work on private copies of the objects
+     * they access and are validated against each other at commit.
+     */
+    private boolean concurrent = false;
+    /**
+     * Number of transactions committed in concurrent mode.
+     */
+    private long commitSequence = 0;
+    /**
+     * Transactions committed in concurrent mode that may still conflict
+     * with an active transaction, in commit order.
+     */
+    private final List<TransactionContext> committed =
+            new ArrayList<TransactionContext>();
+    /**
+     * Number of active transactions by the commit sequence number at which
+     * they started.
+     */
+    private final NavigableMap<Long, Integer> activeStarts =
+            new TreeMap<Long, Integer>();
+    /**
+     * Number of times objects have been replaced or removed, so that the
+     * objects cached by references are no longer valid.
+     */
+    private long epochCounter = 0;
     /**
-     * Tracks ManagedObjects that have been removed from the data store
+     * The epoch against which references cache the objects they retrieve,
+     * or {@link #NO_EPOCH} while every retrieval must go through the data
+     * store.
      */
-    private Map<ManagedObject, BigInteger> removedMap =
-            new IdentityHashMap<ManagedObject, BigInteger>();
+    private volatile long referenceEpoch = 0;
     /**
-     * List of references created during this transaction
+     * Number of transaction boundaries simulated by
+     * {@link #serializeDataStore}.  References created by this data store
+     * capture the epoch, and are deactivated when it changes.
      */
-    private List<MockManagedReference> referenceList =
-            new ArrayList<MockManagedReference>();
+    private volatile long transactionEpoch = 0;
 
     @Override
-    public <T> ManagedReference<T> createReference(T object) {
+    public synchronized <T> ManagedReference<T> createReference(T object) {
         checkArgument(object);
         checkRemoved(object);
         ManagedObject o = (ManagedObject) object;
-        BigInteger id = addToDataStore(o);
-        MockManagedReference<T> m = new MockManagedReference<T>(id);
-        referenceList.add(m);
-        return m;
+        long id = addToDataStore(o);
+        return new MockManagedReference<T>(id, this, transactionEpoch);
     }
 
     @Override
-    public ManagedObject getBinding(String name) {
-        checkNull(name);
-        BigInteger id = bindings.get(name);
-        if (id == null) {
-            throw new NameNotBoundException(
-                    "No binding for " + name + " in the data store");
-        }
-
-        return getObjectWithId(id);
+    public synchronized ManagedObject getBinding(String name) {
+        long id = getBoundId(name);
+        countAccess(name, id, AccessStatistics.Access.GET_BINDING);
+        return retrieve(id);
     }
 
     @Override
-    public ManagedObject getBindingForUpdate(String name) {
-        return getBinding(name);
+    public synchronized ManagedObject getBindingForUpdate(String name) {
+        long id = getBoundId(name);
+        countAccess(name, id, AccessStatistics.Access.GET_BINDING_FOR_UPDATE);
+        return retrieveForUpdate(id);
     }
 
     @Override
-    public void markForUpdate(Object object) {
+    public synchronized void markForUpdate(Object object) {
         checkArgument(object);
 
-        if (!idMap.containsKey(object)) {
+        TransactionContext txn = transaction.get();
+        Long id = copyId(txn, object);
+        if (id != null) {
+            countAccess(null, id, AccessStatistics.Access.MARK_FOR_UPDATE);
+            txn.objectWritten(id);
+            return;
+        }
+
+        id = idMap.get(object);
+        if (id == null) {
             checkRemoved(object);
+        } else {
+            countAccess(null, id, AccessStatistics.Access.MARK_FOR_UPDATE);
+            ManagedObject target = ownCopy(id, (ManagedObject) object);
+            if (txn != null) {
+                txn.objectWritten(id);
+            }
+            recordUpdate(txn, id, target);
+            dirty.put(id, target);
         }
     }
 
     @Override
-    public BigInteger getObjectId(Object object) {
+    public synchronized BigInteger getObjectId(Object object) {
         checkArgument(object);
 
-        if (idMap.containsKey(object)) {
-            return idMap.get(object);
+        Long id = copyId(transaction.get(), object);
+        if (id == null) {
+            id = idMap.get(object);
+        }
+        if (id != null) {
+            return BigInteger.valueOf(id);
         }
 
         return createReference(object).getId();
     }
 
     @Override
-    public String nextBoundName(String name) {
-        List<String> names = new ArrayList<String>(bindings.keySet());
-        Collections.sort(names);
-
+    public synchronized String nextBoundName(String name) {
         if(name == null) {
-            if(names.size() > 0) {
-                return names.get(0);
-            }
-        } else {
-            for (Iterator<String> in = names.iterator(); in.hasNext();) {
-                String next = in.next();
-                if (name.compareTo(next) < 0) {
-                    return next;
-                }
-            }
+            return bindings.isEmpty() ? null : bindings.firstKey();
         }
-        return null;
+        return bindings.higherKey(name);
     }
 
     @Override
-    public void removeBinding(String name) {
+    public synchronized void removeBinding(String name) {
         checkNull(name);
+        TransactionContext txn = transaction.get();
+        if (txn != null) {
+            txn.nameWritten(name);
+        }
         if (!bindings.containsKey(name)) {
             throw new NameNotBoundException(
                     "No binding for " + name + " in the data store");
         }
-        bindings.remove(name);
+        unshareBindings();
+        Long previous = bindings.remove(name);
+        if (txn != null) {
+            txn.undoLog.bindingChanged(name, previous);
+        }
     }
 
     @Override
-    public void removeObject(Object object) {
+    public synchronized void removeObject(Object object) {
         checkArgument(object);
 
-        if (!idMap.containsKey(object)) {
-            checkRemoved(object);
+        TransactionContext txn = transaction.get();
+        ManagedObject target = (ManagedObject) object;
+        Long id = copyId(txn, object);
+        if (id == null) {
+            id = idMap.get(object);
+            if (id == null) {
+                checkRemoved(object);
+            } else {
+                target = ownCopy(id, target);
+                if (target instanceof ManagedObjectRemoval) {
+                    // Snapshot the object before removingObject() changes
+                    // it, so that an abort restores it as it was
+                    recordUpdate(txn, id, target);
+                }
+            }
         }
 
-        if (object instanceof ManagedObjectRemoval) {
-            ((ManagedObjectRemoval) object).removingObject();
+        if (target instanceof ManagedObjectRemoval) {
+            ((ManagedObjectRemoval) target).removingObject();
+        }
+        if (id != null) {
+            ManagedObject stored = store.remove(id);
+            if (stored == null) {
+                id = null;
+            } else {
+                idMap.remove(stored);
+                unindexObject(id, stored.getClass());
+                dirty.remove(id);
+                if (privateObjects != null) {
+                    privateObjects.remove(id);
+                }
+                if (txn != null) {
+                    txn.objectWritten(id);
+                    txn.undoLog.objectRemoved(id, stored, object);
+                    if (txn.isolated) {
+                        txn.removeCopy(id);
+                    }
+                }
+            }
+        }
+        unshareTombstones();
+        tombstones.add(object);
+        if (target != object) {
+            tombstones.add(target);
         }
-        BigInteger id = idMap.remove(object);
-        store.remove(id);
-        removedMap.put((ManagedObject)object, id);
+        invalidateReferences();
     }
 
     @Override
-    public void setBinding(String name, Object object) {
+    public synchronized void setBinding(String name, Object object) {
         checkNull(name);
         checkArgument(object);
         checkRemoved(object);
-        BigInteger id = addToDataStore((ManagedObject) object);
-        bindings.put(name, id);
+        long id = addToDataStore((ManagedObject) object);
+        unshareBindings();
+        Long previous = bindings.put(name, id);
+        TransactionContext txn = transaction.get();
+        if (txn != null) {
+            txn.nameWritten(name);
+            txn.undoLog.bindingChanged(name, previous);
+        }
+    }
+
+    /**
+     * Creates a reference to each of the objects, adding any that are not
+     * already in the data store.  This has the same effect as calling
+     * {@link #createReference} for each object in turn, but is much faster
+     * for large numbers of objects: every object is validated before any
+     * is added, so nothing is added if one is invalid, the ids of the new
+     * objects are allocated as a single range, and the tables that hold
+     * them are grown once rather than repeatedly.
+     *
+     * @param <T> the type of the objects
+     * @param objects the objects to reference
+     * @return references to the objects, in the order of the collection
+     * @throws NullPointerException if any object is {@code null}
+     * @throws IllegalArgumentException if any object does not implement
+     *         both {@code ManagedObject} and {@code Serializable}
+     * @throws ObjectNotFoundException if any object has been removed
+     */
+    public synchronized <T> List<ManagedReference<T>> createReferences(
+            Collection<? extends T> objects) {
+        long[] ids = addAllToDataStore(objects);
+        List<ManagedReference<T>> references =
+                new ArrayList<ManagedReference<T>>(ids.length);
+        for (long id : ids) {
+            references.add(new MockManagedReference<T>(id, this,
+                                                       transactionEpoch));
+        }
+        return references;
+    }
+
+    /**
+     * Binds each of the names to its object, adding any objects that are
+     * not already in the data store.  This has the same effect as calling
+     * {@link #setBinding} for each entry in turn, but validates every name
+     * and object before making any change, and adds the objects as
+     * {@link #createReferences} does.
+     *
+     * @param objects map of the names to bind to their objects
+     * @throws NullPointerException if any name or object is {@code null}
+     * @throws IllegalArgumentException if any object does not implement
+     *         both {@code ManagedObject} and {@code Serializable}
+     * @throws ObjectNotFoundException if any object has been removed
+     */
+    public synchronized void setBindings(Map<String, ?> objects) {
+        String[] names = new String[objects.size()];
+        List<Object> values = new ArrayList<Object>(objects.size());
+        for (Map.Entry<String, ?> entry : objects.entrySet()) {
+            checkNull(entry.getKey());
+            names[values.size()] = entry.getKey();
+            values.add(entry.getValue());
+        }
+
+        long[] ids = addAllToDataStore(values);
+        unshareBindings();
+        TransactionContext txn = transaction.get();
+        for (int i = 0; i < names.length; i++) {
+            Long previous = bindings.put(names[i], ids[i]);
+            if (txn != null) {
+                txn.nameWritten(names[i]);
+                txn.undoLog.bindingChanged(names[i], previous);
+            }
+        }
     }
 
     /**
      * Retrieves the complete set of {@code ManagedObject}s in the data store.
+     * When objects are stored serialized, only the objects retrieved since
+     * the last boundary are included.  The set is a snapshot, and does not
+     * change as the data store does.
      *
      * @return complete set of items in the data store
      */
-    public Set<ManagedObject> getAllData() {
+    public synchronized Set<ManagedObject> getAllData() {
         return idMap.keySet();
     }
 
+    /**
+     * Returns the number of objects in the data store that are instances
+     * of the given class, including instances of its subclasses.
+     *
+     * @param type the class or interface
+     * @return the number of objects of that type
+     */
+    public synchronized int countObjectsOfType(Class<?> type) {
+        int count = 0;
+        for (Map.Entry<Class<?>, CopyOnWriteLongHashMap<Boolean>> entry
+                : classIndex().entrySet()) {
+            if (type.isAssignableFrom(entry.getKey())) {
+                count += entry.getValue().size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the objects in the data store that are instances of the
+     * given class, including instances of its subclasses, in order of
+     * id.  The objects are found through an index by class, which is
+     * built by scanning the data store the first time this method or
+     * {@link #countObjectsOfType} is called, and is kept up to date from
+     * then on.  <p>
+     *
+     * The list holds the ids of the objects found when it was created,
+     * and each element is retrieved when it is accessed, so objects held
+     * serialized are only deserialized as they are used.  Retrieving an
+     * element is not counted by the access statistics or the latency
+     * estimator.  The list supports fast random
+     * access, so it can be split with {@code subList} and the parts
+     * processed on different threads.  Accessing an element whose object
+     * has since been removed throws an {@code ObjectNotFoundException}.
+     *
+     * @param type the class or interface
+     * @return an unmodifiable list of the objects of that type
+     */
+    public synchronized <T> List<T> getObjectsOfType(Class<T> type) {
+        long[] ids = new long[countObjectsOfType(type)];
+        int next = 0;
+        for (Map.Entry<Class<?>, CopyOnWriteLongHashMap<Boolean>> entry
+                : classIndex().entrySet()) {
+            if (type.isAssignableFrom(entry.getKey())) {
+                long[] keys = entry.getValue().keys();
+                System.arraycopy(keys, 0, ids, next, keys.length);
+                next += keys.length;
+            }
+        }
+        Arrays.sort(ids);
+        return new ObjectList<T>(this, type, ids);
+    }
+
     /**
      * Retrieves a mapping of names to {@code ManagedObject}s for all name
      * bindings in the data store.  Note that the result of this method
@@ -185,15 +544,74 @@ public class MockDataManager implements DataManager {
      *
      * @return map of names bound to objects in the data store
      */
-    public Map<String, ManagedObject> getBoundData() {
+    public synchronized Map<String, ManagedObject> getBoundData() {
         Map<String, ManagedObject> data = new HashMap<String, ManagedObject>();
-        for(String name : bindings.keySet()) {
-            data.put(name, store.get(bindings.get(name)));
+        for(Map.Entry<String, Long> binding : bindings.entrySet()) {
+            long id = binding.getValue();
+            ManagedObject object = store.get(id);
+            if (object == null) {
+                object = materialize(id);
+            }
+            data.put(binding.getKey(), ownCopy(id, object));
         }
 
         return data;
     }
 
+    /**
+     * Returns a cursor over the bound names that start with the given
+     * prefix, in sorted order.  The cursor walks the binding index
+     * directly without copying it, so the data store must not be modified
+     * while it is in use.  Each step holds the data store's lock, like
+     * the other accessors.  The cursor does not support {@code remove}.
+     *
+     * @param prefix the prefix of the names to return, or {@code null} or
+     *        the empty string for all names
+     * @return iterator over the matching bound names
+     */
+    public synchronized Iterator<String> boundNames(final String prefix) {
+        final Iterator<String> names = (prefix == null)
+                ? bindings.keySet().iterator()
+                : bindings.tailMap(prefix, true).keySet().iterator();
+
+        return new Iterator<String>() {
+            private String next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                String current = next;
+                next = advance();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException(
+                        "Bindings cannot be removed through the cursor");
+            }
+
+            private String advance() {
+                synchronized (MockDataManager.this) {
+                    if (names.hasNext()) {
+                        String name = names.next();
+                        if (prefix == null || name.startsWith(prefix)) {
+                            return name;
+                        }
+                    }
+                    return null;
+                }
+            }
+        };
+    }
+
 
     /**
      * Retrieves the object with the specified id from the data store
@@ -204,139 +622,1784 @@ public class MockDataManager implements DataManager {
      *         exists in the data store
      */
     public ManagedObject getObjectWithId(BigInteger id) {
-        if (!store.containsKey(id)) {
+        if (id.bitLength() >= Long.SIZE) {
             throw new ObjectNotFoundException(
                     "No object found in the data store with id : " + id);
         }
 
-        return store.get(id);
+        return getObjectWithId(id.longValue());
     }
 
     /**
-     * Returns the total number of objects in the data store
+     * Retrieves the object with the specified id from the data store
      *
-     * @return total number of objects in the data store
+     * @param id the id of the object
+     * @return the {@code ManagedObject} that is associated with this id
+     * @throws ObjectNotFoundException if no object with the given id
+     *         exists in the data store
      */
-    public int size() {
-        return store.size();
+    public synchronized ManagedObject getObjectWithId(long id) {
+        countAccess(null, id, AccessStatistics.Access.GET);
+        return retrieve(id);
     }
 
     /**
-     * Serialize and de-serialize each of the objects in the data store
-     * to simulate the start of a new transaction.  <p>
+     * Retrieves the object with the specified id from the data store
+     * without counting the access.
      *
-     * This method will
-     * also have the added side effect of deactivating any
-     * {@code ManagedReference} objects that have been created through
-     * this data store since the last call to this method.  <p>
+     * @param id the id of the object
+     * @return the {@code ManagedObject} that is associated with this id
+     * @throws ObjectNotFoundException if no object with the given id
+     *         exists in the data store
+     */
+    synchronized ManagedObject getObjectUncounted(long id) {
+        return retrieve(id);
+    }
+
+    /**
+     * Retrieves the object with the specified id from the data store
+     * and marks it as updated in the current transaction.
      *
-     * A deactivated
-     * {@code ManagedReference} will always throw a
-     * {@code TransactionNotActiveException} if an attempt is made to
-     * get its associated {@code ManagedObject}.
+     * @param id the id of the object
+     * @return the {@code ManagedObject} that is associated with this id
+     * @throws ObjectNotFoundException if no object with the given id
+     *         exists in the data store
      */
-    public void serializeDataStore() throws Exception {
+    synchronized ManagedObject getObjectForUpdate(long id) {
+        countAccess(null, id, AccessStatistics.Access.GET_FOR_UPDATE);
+        return retrieveForUpdate(id);
+    }
 
-        //deactive all current references
-        for (MockManagedReference r : referenceList) {
-            r.deactivate();
+    /**
+     * Records an access to an object with the access statistics and the
+     * latency estimator, if they are set.
+     *
+     * @param name the name the object was retrieved through, or
+     *        {@code null}
+     */
+    private void countAccess(String name, long id,
+                             AccessStatistics.Access access) {
+        if (accessStatistics != null) {
+            if (name != null) {
+                accessStatistics.recordBinding(name, id, access);
+            } else {
+                accessStatistics.recordObject(id, access);
+            }
         }
-        referenceList.clear();
-
-        //serialize each member of the data store and then read it back
-        //and store in the data store
-        for (Iterator<ManagedObject> im = idMap.keySet().iterator();
-                im.hasNext();) {
-            ManagedObject m = im.next();
-            BigInteger id = idMap.get(m);
+        if (latencyEstimator != null) {
+            if (access == AccessStatistics.Access.GET ||
+                    access == AccessStatistics.Access.GET_BINDING) {
+                latencyEstimator.objectAccessed(id);
+            } else {
+                latencyEstimator.objectUpdated(id);
+            }
+        }
+    }
 
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(baos);
-            oos.writeObject(m);
+    /**
+     * Charges the latency estimator for writing back the objects created
+     * or updated since the last write-back.
+     */
+    private void chargeWrites() {
+        if (latencyEstimator == null) {
+            return;
+        }
+        SerializationContext context = serializationContext.get();
+        for (long id : latencyEstimator.takePendingWrites()) {
+            ManagedObject object = store.get(id);
+            if (object == null) {
+                continue;
+            }
+            try {
+                latencyEstimator.objectWritten(
+                        context.serialize(object).remaining());
+            } catch (IOException e) {
+                throw new IllegalStateException(
+                        "Unable to serialize object: " + id, e);
+            }
+        }
+    }
 
-            byte[] serializedForm = baos.toByteArray();
+    /**
+     * Forgets the objects created or updated since the last write-back,
+     * since their changes have been undone.
+     */
+    private void discardWrites() {
+        if (latencyEstimator != null) {
+            latencyEstimator.takePendingWrites();
+        }
+    }
 
-            ByteArrayInputStream bais =
-                    new ByteArrayInputStream(serializedForm);
-            ObjectInputStream ois = new ObjectInputStream(bais);
+    /**
+     * Retrieves an object without counting the access.
+     */
+    private ManagedObject retrieve(long id) {
+        TransactionContext txn = transaction.get();
+        if (txn != null) {
+            txn.objectRead(id);
+            if (txn.isolated) {
+                ManagedObject copy = txn.copy(id);
+                if (copy != null) {
+                    return copy;
+                }
+            }
+        }
 
-            m = (ManagedObject) ois.readObject();
-            store.put(id, m);
+        ManagedObject object = store.get(id);
+        if (object == null) {
+            object = materialize(id);
+            if (object == null) {
+                throw new ObjectNotFoundException(
+                        "No object found in the data store with id : " + id);
+            }
+            deserializationCount++;
         }
 
-        //record each object id in the id map
-        idMap.clear();
-        for (Iterator<BigInteger> ib = store.keySet().iterator();
-                ib.hasNext();) {
-            BigInteger id = ib.next();
-            ManagedObject object = store.get(id);
-            idMap.put(object, id);
+        object = ownCopy(id, object);
+        if (txn != null && txn.isolated) {
+            object = copyOf(id, object);
+            txn.addCopy(id, object);
         }
+        return object;
     }
 
     /**
-     * Verify that the object implements both ManagedObject
-     * and Serializable
-     * @param object
+     * Retrieves an object for update without counting the access.
      */
-    private void checkArgument(Object object) {
-        if (object == null) {
-            throw new NullPointerException("The object must not be null");
+    private ManagedObject retrieveForUpdate(long id) {
+        ManagedObject object = retrieve(id);
+        TransactionContext txn = transaction.get();
+        if (txn != null) {
+            txn.objectWritten(id);
         }
-        if (!(object instanceof ManagedObject)) {
-            throw new IllegalArgumentException(
-                    "Object does not implement ManagedObject: " +
-                    System.identityHashCode(object));
+        if (txn == null || !txn.isolated) {
+            recordUpdate(txn, id, object);
+            dirty.put(id, object);
         }
-        if (!(object instanceof Serializable)) {
-            throw new IllegalArgumentException(
-                    "Object does not implement Serializable: " +
-                    System.identityHashCode(object));
+        return object;
+    }
+
+    /**
+     * Starts a transaction on the current thread.  Until {@link #commit}
+     * or {@link #abort} is called, the data store keeps an undo log of
+     * every name binding change, every object added or removed, and a
+     * snapshot of every object as it was when first retrieved for update
+     * or marked for update.  Objects modified without being marked for
+     * update cannot be restored.  <p>
+     *
+     * The transaction also records the ids of the objects it reads with
+     * {@code get} or {@code getBinding}, and writes with
+     * {@code getForUpdate}, {@code getBindingForUpdate},
+     * {@code markForUpdate} or {@code removeObject}, along with the names
+     * it looks up and binds.  In concurrent mode these are checked for
+     * conflicts when the transaction commits.
+     *
+     * @throws IllegalStateException if a transaction is already active on
+     *         the current thread
+     */
+    public synchronized void begin() {
+        if (transaction.get() != null) {
+            throw new IllegalStateException("Transaction already active");
         }
+        TransactionContext txn =
+                new TransactionContext(commitSequence, concurrent);
+        transaction.set(txn);
+        Integer count = activeStarts.get(txn.startSequence);
+        activeStarts.put(txn.startSequence, count == null ? 1 : count + 1);
+        invalidateReferences();
     }
 
     /**
-     * Verify that the object has not been previously removed
-     * from the data store
-     * @param object
+     * Commits the transaction on the current thread, discarding its undo
+     * log.  In concurrent mode the transaction is first validated against
+     * every transaction that committed after it started: if one of those
+     * wrote an object or name that this transaction read or wrote, this
+     * transaction is rolled back as if by {@link #abort} and a
+     * {@code TransactionConflictException} is thrown.  Otherwise the
+     * private copies of the objects it wrote replace the committed ones.
+     *
+     * @throws IllegalStateException if no transaction is active on the
+     *         current thread
+     * @throws TransactionConflictException if the transaction conflicts
+     *         with one that has already committed
      */
-    private void checkRemoved(Object object) {
-        if(removedMap.containsKey(object)) {
-            throw new ObjectNotFoundException(
-                    "Object has been previously removed from the " +
-                    "data store: " +
-                    System.identityHashCode(object));
+    public synchronized void commit() {
+        TransactionContext txn = checkTransaction();
+        if (!txn.isolated) {
+            endTransaction(txn);
+            chargeWrites();
+            return;
+        }
+
+        for (TransactionContext other : committed) {
+            if (other.commitSequence <= txn.startSequence) {
+                continue;
+            }
+            String conflict = txn.findConflict(other);
+            if (conflict != null) {
+                rollback(txn);
+                endTransaction(txn);
+                discardWrites();
+                throw new TransactionConflictException(
+                        "Transaction conflicts on " + conflict +
+                        " with a committed transaction");
+            }
+        }
+
+        for (long id : txn.writeIds()) {
+            ManagedObject copy = txn.copy(id);
+            if (copy != null && store.containsKey(id)) {
+                ManagedObject current = store.put(id, copy);
+                idMap.remove(current);
+                idMap.put(copy, id);
+                dirty.put(id, copy);
+                if (privateObjects != null) {
+                    privateObjects.put(id, copy);
+                }
+            }
         }
+        txn.commitSequence = ++commitSequence;
+        committed.add(txn);
+        endTransaction(txn);
+        chargeWrites();
     }
 
     /**
-     * Verify that the name is not null
-     * @param name
+     * Aborts the transaction on the current thread, restoring the name
+     * bindings and objects that it changed.  The time taken is
+     * proportional to the number of changes made in the transaction, not
+     * to the size of the data store.  Objects restored from a snapshot are
+     * new instances.
+     *
+     * @throws IllegalStateException if no transaction is active on the
+     *         current thread
      */
-    private void checkNull(String name) {
-       if(name == null) {
-           throw new NullPointerException("The name must not be null");
-       }
+    public synchronized void abort() {
+        TransactionContext txn = checkTransaction();
+        rollback(txn);
+        endTransaction(txn);
+        discardWrites();
     }
 
     /**
-     * Adds the object to the backing data store map.  If the object
-     * is already in the map, no changes are made and its id is simply
-     * returned.  Otherwise, a new id is assigned to this object,
-     * the object is stored, and the id is returned.
+     * Returns whether a transaction has been started on the current thread
+     * with {@link #begin} and not yet committed or aborted.
      *
-     * @param object the object to put into the data store
-     * @return the id of the object in the data store
+     * @return {@code true} if a transaction is active
      */
-    private BigInteger addToDataStore(ManagedObject object) {
-        BigInteger id = idMap.get(object);
-        if (id == null) {
-            id = masterId;
-            masterId = masterId.add(BigInteger.ONE);
-            store.put(id, object);
-            idMap.put(object, id);
-        }
-        return id;
+    public boolean isTransactionActive() {
+        return transaction.get() != null;
     }
-}
 
+    /**
+     * Returns whether transactions on different threads are isolated from
+     * each other and checked for conflicts at commit.
+     *
+     * @return {@code true} if concurrent mode is enabled
+     */
+    public synchronized boolean isConcurrent() {
+        return concurrent;
+    }
+
+    /**
+     * Sets whether transactions on different threads are isolated from
+     * each other and checked for conflicts at commit, so that tasks can be
+     * run against the data store from several threads at once.  <p>
+     *
+     * In concurrent mode each transaction reads and writes its own
+     * serialized copies of the objects it retrieves, which are installed
+     * in the data store only when it commits; snapshots are not needed to
+     * abort it.  A transaction fails at commit with a
+     * {@code TransactionConflictException} if another transaction
+     * committed after it started and wrote an object or name that it read
+     * or wrote.  Name bindings, and objects added or removed, are applied
+     * to the data store immediately and undone if the transaction does
+     * not commit, so other transactions may see them before then.  <p>
+     *
+     * By default this is {@code false}, and transactions work directly on
+     * the objects in the data store.
+     *
+     * @param concurrent {@code true} to enable concurrent mode
+     * @throws IllegalStateException if any transaction is active
+     */
+    public synchronized void setConcurrent(boolean concurrent) {
+        if (!activeStarts.isEmpty()) {
+            throw new IllegalStateException(
+                    "Cannot change mode while transactions are active");
+        }
+        this.concurrent = concurrent;
+        invalidateReferences();
+    }
+
+    /**
+     * Creates a copy of this data store that shares its current state.
+     * Forking does not copy the data store: the two data stores share
+     * their tables, and each copies a chunk of a table the first time it
+     * modifies it, so a fork that changes a few objects costs time in
+     * proportion to those changes rather than to the size of the data
+     * store.  Only the objects changed since the last boundary are copied
+     * up front.  The tables of a data store that has never been forked
+     * are plain hash tables, so the first fork also converts them to
+     * chunked ones, in time proportional to the size of the data
+     * store.  The data stores also share their objects until one of
+     * them accesses an object, at which point that data store makes its
+     * own copy of it.  Changes made through either data store are
+     * therefore never seen by the other.  <p>
+     *
+     * Objects obtained from this data store before the fork are shared by
+     * both copies, and must be retrieved again rather than modified.
+     * {@link #getAllData} returns the shared instances of objects that
+     * have not been accessed since the fork.  <p>
+     *
+     * The fork uses the same serialization settings as this data store.
+     *
+     * @return the new data store
+     */
+    public synchronized MockDataManager fork() {
+        MockDataManager fork = new MockDataManager();
+        fork.store = store.copy();
+        fork.bindings = bindings;
+        fork.idMap = idMap.copy();
+        fork.tombstones = tombstones;
+        if (classIndex != null) {
+            fork.classIndex = copyIndex(classIndex);
+        }
+        fork.dirty = dirty.copy();
+        fork.bindingsShared = true;
+        fork.tombstonesShared = true;
+        fork.privateObjects = new LongHashMap<ManagedObject>();
+        fork.incrementalSerialization = incrementalSerialization;
+        fork.serializationParallelism = serializationParallelism;
+        fork.setSerializationCodec(serializationCodec);
+        fork.storageMode = storageMode;
+        fork.serialized = serialized.copy();
+        fork.arena = arena;
+        fork.serializedBytes = serializedBytes;
+
+        bindingsShared = true;
+        tombstonesShared = true;
+        privateObjects = new LongHashMap<ManagedObject>();
+        invalidateReferences();
+        return fork;
+    }
+
+    /**
+     * Returns the total number of objects in the data store
+     *
+     * @return total number of objects in the data store
+     */
+    public synchronized int size() {
+        return store.size() + serialized.size();
+    }
+
+    /**
+     * Returns whether {@link #serializeDataStore} only serializes the
+     * objects touched since the last transaction boundary.
+     *
+     * @return {@code true} if incremental serialization is enabled
+     */
+    public boolean isIncrementalSerialization() {
+        return incrementalSerialization;
+    }
+
+    /**
+     * Sets whether {@link #serializeDataStore} only serializes the objects
+     * touched since the last transaction boundary.  An object is touched if
+     * it was added to the data store, retrieved through
+     * {@code getForUpdate} or {@code getBindingForUpdate}, or passed to
+     * {@code markForUpdate}.  Objects that are modified without being
+     * marked for update keep their in-memory state across the boundary.
+     * <p>
+     *
+     * By default this is {@code false}, and every object in the data store
+     * is serialized at each boundary.
+     *
+     * @param incrementalSerialization {@code true} to only serialize
+     *        touched objects
+     */
+    public void setIncrementalSerialization(boolean incrementalSerialization) {
+        this.incrementalSerialization = incrementalSerialization;
+    }
+
+    /**
+     * Serialize and de-serialize each of the objects in the data store
+     * to simulate the start of a new transaction.  If incremental
+     * serialization is enabled, only the objects touched since the last
+     * call are serialized.  <p>
+     *
+     * This method will
+     * also have the added side effect of deactivating any
+     * {@code ManagedReference} objects that have been created through
+     * this data store since the last call to this method.  <p>
+     *
+     * A deactivated
+     * {@code ManagedReference} will always throw a
+     * {@code TransactionNotActiveException} if an attempt is made to
+     * get its associated {@code ManagedObject}.
+     */
+    public synchronized void serializeDataStore() throws Exception {
+
+        //collect the objects to serialize: every member of the data
+        //store, or only the touched ones in incremental mode.  When
+        //objects are stored serialized, every object retrieved since the
+        //last boundary is written back.
+        boolean storeSerialized = storageMode != StorageMode.HEAP;
+        boolean dirtyOnly = incrementalSerialization && !storeSerialized;
+        long[] ids = dirtyOnly ? dirty.keys() : store.keys();
+        ManagedObject[] objects = new ManagedObject[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            objects[i] = dirtyOnly ? dirty.get(ids[i]) : store.get(ids[i]);
+        }
+
+        //a strict detector fails the boundary before anything is changed
+        if (embeddedObjectDetector != null) {
+            detectEmbeddedObjects(embeddedObjectDetector, ids, objects);
+        }
+
+        chargeWrites();
+
+        //deactivate all current references
+        transactionEpoch++;
+
+        //serialize each object and then read it back, or keep only its
+        //serialized form
+        SerializationProfile profile = serializationProfile;
+        long[] samples = (profile == null) ? null : new long[3 * ids.length];
+        ByteArena.Blob[] blobs = null;
+        if (storeSerialized) {
+            blobs = new ByteArena.Blob[ids.length];
+            if (arena == null) {
+                arena = new ByteArena(storageMode == StorageMode.OFF_HEAP);
+            }
+        }
+        ManagedObject[] copies = roundTripAll(objects, blobs, samples);
+        if (profile != null) {
+            recordProfile(profile, ids, objects, samples);
+        }
+
+        if (storeSerialized) {
+            for (int i = 0; i < ids.length; i++) {
+                store.remove(ids[i]);
+                idMap.remove(objects[i]);
+                serialized.put(ids[i], blobs[i]);
+                serializedBytes += blobs[i].length;
+            }
+            dirty = new LongHashMap<ManagedObject>();
+            privateObjects = null;
+            compactArena();
+            invalidateReferences();
+            return;
+        }
+
+        //store the copies and record each object id in the id map
+        if (!incrementalSerialization) {
+            idMap.clear();
+        }
+        for (int i = 0; i < ids.length; i++) {
+            idMap.remove(objects[i]);
+            idMap.put(copies[i], ids[i]);
+            store.put(ids[i], copies[i]);
+            if (privateObjects != null) {
+                privateObjects.put(ids[i], copies[i]);
+            }
+        }
+        dirty = new LongHashMap<ManagedObject>();
+        invalidateReferences();
+
+        //after a full boundary nothing is shared with a fork any more
+        if (!incrementalSerialization) {
+            privateObjects = null;
+        }
+    }
+
+    /**
+     * Returns the number of threads used to serialize objects at a
+     * transaction boundary.
+     *
+     * @return the serialization parallelism
+     */
+    public int getSerializationParallelism() {
+        return serializationParallelism;
+    }
+
+    /**
+     * Sets the number of threads used to serialize objects at a
+     * transaction boundary.  Each object is serialized and deserialized
+     * independently, so with a value greater than one the round-trips are
+     * spread across a pool of worker threads and the data store is
+     * rebuilt from the results once they have all completed.  <p>
+     *
+     * By default this is {@code 1}, and objects are serialized on the
+     * calling thread.
+     *
+     * @param parallelism the number of serialization threads
+     */
+    public void setSerializationParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(
+                    "Parallelism must be at least one: " + parallelism);
+        }
+        this.serializationParallelism = parallelism;
+    }
+
+    /**
+     * Returns the codec used to serialize objects at a transaction
+     * boundary.
+     *
+     * @return the serialization codec
+     */
+    public SerializationCodec getSerializationCodec() {
+        return serializationCodec;
+    }
+
+    /**
+     * Sets the codec used to serialize objects at a transaction boundary.
+     * By default this is a {@link JdkSerializationCodec}, which matches
+     * the darkstar data store.
+     *
+     * @param codec the serialization codec
+     */
+    public void setSerializationCodec(SerializationCodec codec) {
+        if (codec == null) {
+            throw new NullPointerException("The codec must not be null");
+        }
+        //objects stored serialized can only be read by the old codec
+        materializeAll();
+        this.serializationCodec = codec;
+        this.serializationContext = newSerializationContext(codec);
+    }
+
+    /**
+     * Returns the profile that collects statistics about each transaction
+     * boundary.
+     *
+     * @return the serialization profile, or {@code null} if profiling is
+     *         disabled
+     */
+    public synchronized SerializationProfile getSerializationProfile() {
+        return serializationProfile;
+    }
+
+    /**
+     * Sets the profile that collects statistics about each transaction
+     * boundary.  While a profile is set, each call to
+     * {@link #serializeDataStore} records the serialized size and the
+     * serialization and deserialization time of every object it
+     * round-trips, by class and by binding name.  Only the objects
+     * actually serialized are recorded, so in incremental mode untouched
+     * objects do not appear.  <p>
+     *
+     * By default no profile is set.
+     *
+     * @param profile the profile to add statistics to, or {@code null} to
+     *        disable profiling
+     */
+    public synchronized void setSerializationProfile(
+            SerializationProfile profile) {
+        this.serializationProfile = profile;
+    }
+
+    /**
+     * Returns the detector that checks each transaction boundary for
+     * managed objects embedded in other managed objects.
+     *
+     * @return the detector, or {@code null} if the check is disabled
+     */
+    public synchronized EmbeddedObjectDetector getEmbeddedObjectDetector() {
+        return embeddedObjectDetector;
+    }
+
+    /**
+     * Sets the detector that checks each transaction boundary for managed
+     * objects held directly by other managed objects instead of through a
+     * {@code ManagedReference}.  While a detector is set, each call to
+     * {@link #serializeDataStore} serializes every object an extra time
+     * to look for them, and a strict detector fails the call with an
+     * {@code IllegalStateException} if any are found.  <p>
+     *
+     * By default no detector is set.
+     *
+     * @param detector the detector, or {@code null} to disable the check
+     */
+    public synchronized void setEmbeddedObjectDetector(
+            EmbeddedObjectDetector detector) {
+        this.embeddedObjectDetector = detector;
+    }
+
+    /**
+     * Returns the statistics that count the accesses to each object and
+     * binding.
+     *
+     * @return the statistics, or {@code null} if counting is disabled
+     */
+    public synchronized AccessStatistics getAccessStatistics() {
+        return accessStatistics;
+    }
+
+    /**
+     * Sets the statistics that count the accesses to each object and
+     * binding.  While statistics are set, references do not cache the
+     * objects they retrieve, so that every {@code get} and
+     * {@code getForUpdate} reaches the data store and is counted.  <p>
+     *
+     * By default no statistics are set.
+     *
+     * @param statistics the statistics to add counts to, or {@code null}
+     *        to disable counting
+     */
+    public synchronized void setAccessStatistics(
+            AccessStatistics statistics) {
+        this.accessStatistics = statistics;
+        invalidateReferences();
+    }
+
+    /**
+     * Returns the estimator that charges simulated costs for each access.
+     *
+     * @return the estimator, or {@code null} if latency is not being
+     *         estimated
+     */
+    public synchronized LatencyEstimator getLatencyEstimator() {
+        return latencyEstimator;
+    }
+
+    /**
+     * Sets the estimator that charges simulated costs for each access,
+     * to estimate the latency of each task in production.  While an
+     * estimator is set, references do not cache the objects they
+     * retrieve, so that every access reaches the data store.  <p>
+     *
+     * By default no estimator is set.
+     *
+     * @param estimator the estimator, or {@code null} to stop estimating
+     */
+    public synchronized void setLatencyEstimator(LatencyEstimator estimator) {
+        this.latencyEstimator = estimator;
+        invalidateReferences();
+    }
+
+    /**
+     * Returns how objects are held between transaction boundaries.
+     *
+     * @return the storage mode
+     */
+    public synchronized StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    /**
+     * Sets how objects are held between transaction boundaries.  In
+     * {@link StorageMode#OFF_HEAP} or {@link StorageMode#LAZY} mode each
+     * call to {@link #serializeDataStore} serializes every object
+     * retrieved or added since the last boundary, into memory outside the
+     * Java heap or into byte arrays respectively, and drops the instances.
+     * An object is only deserialized again when it is next retrieved, so
+     * the data store can hold far more objects than fit on the heap, and
+     * the cost of each retrieval shows up in profiles.  In this mode
+     * {@link #getAllData} only returns the objects retrieved since the
+     * last boundary, and every retrieved object is written back at the
+     * boundary whether or not it was marked for update, even in
+     * incremental mode.  <p>
+     *
+     * The new mode takes effect at the next boundary.  Any objects held
+     * serialized are deserialized straight away when the mode changes.
+     * By default objects are held on the heap.
+     *
+     * @param mode the storage mode
+     * @throws IllegalStateException if a transaction is active
+     */
+    public synchronized void setStorageMode(StorageMode mode) {
+        if (mode == null) {
+            throw new NullPointerException("The mode must not be null");
+        }
+        if (!activeStarts.isEmpty()) {
+            throw new IllegalStateException(
+                    "Cannot change mode while transactions are active");
+        }
+        if (mode != storageMode) {
+            materializeAll();
+            arena = null;
+            storageMode = mode;
+        }
+    }
+
+    /**
+     * Returns the number of objects that have been deserialized on first
+     * access, because they were held serialized, since the count was last
+     * reset.  Reading the count before and after a task shows how many
+     * objects the task pulled in, which is the main cost of a transaction
+     * against the darkstar data store.  Objects deserialized by
+     * {@link #getBoundData}, or because the storage mode or serialization
+     * codec changed, are not counted.
+     *
+     * @return the number of objects deserialized
+     */
+    public synchronized long getDeserializationCount() {
+        return deserializationCount;
+    }
+
+    /**
+     * Resets the count of objects deserialized on first access to zero.
+     */
+    public synchronized void resetDeserializationCount() {
+        deserializationCount = 0;
+    }
+
+    /**
+     * Returns the maximum number of removed objects that are remembered
+     * in order to detect their reuse.
+     *
+     * @return the tombstone limit
+     */
+    public synchronized int getTombstoneLimit() {
+        return tombstones.getLimit();
+    }
+
+    /**
+     * Sets the maximum number of removed objects that are remembered in
+     * order to detect their reuse.  An object passed to
+     * {@code removeObject} leaves a tombstone, and using the object with
+     * the data store again throws an {@code ObjectNotFoundException}.
+     * Tombstones hold their objects weakly, and are dropped once their
+     * objects are garbage collected, so removing objects never keeps them
+     * alive.  Beyond the limit the oldest tombstones are dropped as well,
+     * and reuse of their objects is no longer detected.  <p>
+     *
+     * By default there is no limit.
+     *
+     * @param limit the maximum number of tombstones
+     */
+    public synchronized void setTombstoneLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException(
+                    "Tombstone limit must not be negative: " + limit);
+        }
+        unshareTombstones();
+        tombstones.setLimit(limit);
+    }
+
+    /**
+     * Returns the number of removed objects currently remembered.
+     */
+    synchronized int tombstoneCount() {
+        return tombstones.size();
+    }
+
+    /**
+     * Writes the complete contents of the data store to a file: the
+     * serialized form of every object along with its id, every name
+     * binding, and the id counter.  The image can be loaded into any
+     * {@code MockDataManager} with {@link #importImage}, so that many
+     * tests can share a single pre-built world.  <p>
+     *
+     * Objects are written with standard Java serialization, whichever
+     * codec is configured, so that the image can be read by any JVM.
+     *
+     * @param file the file to write
+     * @throws IOException if an object cannot be serialized or the file
+     *         cannot be written
+     */
+    public synchronized void exportImage(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 64 * 1024));
+        try {
+            out.writeInt(IMAGE_MAGIC);
+            out.writeInt(IMAGE_VERSION);
+            out.writeLong(masterId.get());
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            long[] stored = store.keys();
+            long[] ids = new long[stored.length + serialized.size()];
+            System.arraycopy(stored, 0, ids, 0, stored.length);
+            System.arraycopy(serialized.keys(), 0, ids, stored.length,
+                             serialized.size());
+            out.writeInt(ids.length);
+            for (long id : ids) {
+                ManagedObject object = store.get(id);
+                if (object == null) {
+                    object = deserialize(id, serialized.get(id));
+                }
+                bytes.reset();
+                ObjectOutputStream oos = new ObjectOutputStream(bytes);
+                oos.writeObject(object);
+                oos.close();
+
+                out.writeLong(id);
+                out.writeInt(bytes.size());
+                bytes.writeTo(out);
+            }
+
+            out.writeInt(bindings.size());
+            for (Map.Entry<String, Long> binding : bindings.entrySet()) {
+                out.writeUTF(binding.getKey());
+                out.writeLong(binding.getValue());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Replaces the contents of the data store with an image written by
+     * {@link #exportImage}.  The file is memory-mapped and each object is
+     * deserialized directly from the mapping.  The id counter is advanced
+     * past the ids in the image, so objects created afterwards never reuse
+     * them.
+     *
+     * @param file the file to read
+     * @throws IOException if the file is not a valid image or cannot be
+     *         read
+     * @throws ClassNotFoundException if the class of an object in the
+     *         image cannot be found
+     */
+    public synchronized void importImage(File file)
+            throws IOException, ClassNotFoundException {
+        MappedByteBuffer image;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            image = channel.map(FileChannel.MapMode.READ_ONLY,
+                                0, channel.size());
+        } finally {
+            in.close();
+        }
+
+        if (image.getInt() != IMAGE_MAGIC) {
+            throw new StreamCorruptedException(
+                    "Not a data store image: " + file);
+        }
+        int version = image.getInt();
+        if (version != IMAGE_VERSION) {
+            throw new StreamCorruptedException(
+                    "Unsupported data store image version: " + version);
+        }
+        long nextId = image.getLong();
+
+        int count = image.getInt();
+        CopyOnWriteLongHashMap<ManagedObject> objects =
+                new CopyOnWriteLongHashMap<ManagedObject>();
+        for (int i = 0; i < count; i++) {
+            long id = image.getLong();
+            int length = image.getInt();
+            ByteBuffer slice = image.slice();
+            slice.limit(length);
+            image.position(image.position() + length);
+
+            ObjectInputStream ois =
+                    new ObjectInputStream(new ByteBufferInputStream(slice));
+            objects.put(id, (ManagedObject) ois.readObject());
+        }
+
+        //the binding section is read through a stream for readUTF,
+        //which advances the mapped buffer as it goes
+        DataInputStream nameInput =
+                new DataInputStream(new ByteBufferInputStream(image));
+        NavigableMap<String, Long> names = new TreeMap<String, Long>();
+        int bindingCount = nameInput.readInt();
+        for (int i = 0; i < bindingCount; i++) {
+            String name = nameInput.readUTF();
+            names.put(name, nameInput.readLong());
+        }
+
+        store = objects;
+        bindings = names;
+        idMap = new IdentityIdMap();
+        classIndex = null;
+        for (long id : objects.keys()) {
+            idMap.put(objects.get(id), id);
+        }
+        tombstones = new TombstoneSet(tombstones.getLimit());
+        dirty = new LongHashMap<ManagedObject>();
+        serialized = new CopyOnWriteLongHashMap<ByteArena.Blob>();
+        arena = null;
+        serializedBytes = 0;
+        bindingsShared = false;
+        tombstonesShared = false;
+        privateObjects = null;
+        invalidateReferences();
+
+        long current = masterId.get();
+        while (current < nextId && !masterId.compareAndSet(current, nextId)) {
+            current = masterId.get();
+        }
+    }
+
+    /**
+     * Finds the objects that can be reached from neither a name binding
+     * nor any of the given roots.  An object is reachable if it is bound
+     * to a name, or if it is referred to through a
+     * {@code ManagedReference} by a root or by another reachable object.
+     * A root may be a {@code ManagedReference}, a managed object in the
+     * data store, or any other serializable object whose references are
+     * followed, such as a task held by the task manager.  <p>
+     *
+     * Every object in the data store is serialized to find the references
+     * it holds, split across the serialization threads when parallel
+     * serialization is enabled.  Objects held serialized are deserialized
+     * to be scanned, but stay serialized.  The data store is not
+     * otherwise changed.
+     *
+     * @param roots the roots to follow in addition to the name bindings
+     * @return the unreachable objects
+     * @throws Exception if an object cannot be serialized
+     */
+    public synchronized ReachabilityReport findUnreachable(
+            Collection<?> roots) throws Exception {
+        long[] heapIds = store.keys();
+        long[] serializedIds = serialized.keys();
+        final long[] ids = new long[heapIds.length + serializedIds.length];
+        System.arraycopy(heapIds, 0, ids, 0, heapIds.length);
+        System.arraycopy(serializedIds, 0, ids, heapIds.length,
+                         serializedIds.length);
+        Arrays.sort(ids);
+
+        final ManagedObject[] objects = new ManagedObject[ids.length];
+        final ByteArena.Blob[] blobs = new ByteArena.Blob[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            objects[i] = store.get(ids[i]);
+            if (objects[i] == null) {
+                blobs[i] = serialized.get(ids[i]);
+            }
+        }
+
+        //each object's references are kept as the positions of the
+        //objects they refer to, so that marking needs no lookups
+        final Class<?>[] types = new Class<?>[ids.length];
+        final long[] sizes = new long[ids.length];
+        final int[][] references = new int[ids.length][];
+        forEachRange(ids.length, new Range() {
+            @Override
+            public void run(int from, int to) throws Exception {
+                SerializationContext context = serializationContext.get();
+                for (int i = from; i < to; i++) {
+                    ManagedObject object = objects[i];
+                    if (object == null) {
+                        object = context.deserialize(arena.get(blobs[i]));
+                    }
+                    ReferenceScanner scanner = ReferenceScanner.scan(object);
+                    types[i] = object.getClass();
+                    references[i] = indexesOf(ids, scanner.references());
+                    sizes[i] = blobs[i] != null ? blobs[i].length
+                                                : scanner.size();
+                }
+            }
+        });
+
+        long[] rootIds = new long[bindings.size() + roots.size()];
+        int rootCount = 0;
+        for (long id : bindings.values()) {
+            rootIds[rootCount++] = id;
+        }
+        for (Object root : roots) {
+            long[] found;
+            if (root instanceof ManagedReference) {
+                found = new long[] {
+                    ((ManagedReference<?>) root).getId().longValue() };
+            } else if (root != null && idMap.containsKey(root)) {
+                found = new long[] { idMap.get(root) };
+            } else if (root != null) {
+                found = ReferenceScanner.scan(root).references();
+            } else {
+                continue;
+            }
+            if (rootCount + found.length > rootIds.length) {
+                rootIds = Arrays.copyOf(rootIds, Math.max(
+                        rootIds.length * 2, rootCount + found.length));
+            }
+            System.arraycopy(found, 0, rootIds, rootCount, found.length);
+            rootCount += found.length;
+        }
+
+        //depth first, marking each object as it is pushed, so the stack
+        //never holds an object twice
+        boolean[] marked = new boolean[ids.length];
+        int[] stack = new int[ids.length];
+        int top = 0;
+        for (int k = 0; k < rootCount; k++) {
+            int i = Arrays.binarySearch(ids, rootIds[k]);
+            if (i >= 0 && !marked[i]) {
+                marked[i] = true;
+                stack[top++] = i;
+            }
+        }
+        int reachable = 0;
+        while (top > 0) {
+            int i = stack[--top];
+            reachable++;
+            for (int j : references[i]) {
+                if (!marked[j]) {
+                    marked[j] = true;
+                    stack[top++] = j;
+                }
+            }
+        }
+
+        ReachabilityReport report = new ReachabilityReport(reachable);
+        for (int i = 0; i < ids.length; i++) {
+            if (!marked[i]) {
+                report.addUnreachable(ids[i], types[i], sizes[i]);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Returns the position in the sorted array of each of the ids that is
+     * in it, skipping the others.
+     */
+    private static int[] indexesOf(long[] sorted, long[] ids) {
+        int[] indexes = new int[ids.length];
+        int n = 0;
+        for (long id : ids) {
+            int i = Arrays.binarySearch(sorted, id);
+            if (i >= 0) {
+                indexes[n++] = i;
+            }
+        }
+        return n == indexes.length ? indexes : Arrays.copyOf(indexes, n);
+    }
+
+    /**
+     * Round-trips each of the objects, returning the copies in the
+     * same order.  The work is split across the serialization pool when
+     * parallel serialization is enabled.  If {@code blobs} is not
+     * {@code null}, each object is only serialized, into the arena, and
+     * the location of its bytes is stored in {@code blobs} instead of a
+     * copy being returned.  If {@code samples} is not {@code null}, the
+     * serialized size, serialization time and deserialization time of
+     * object {@code i} are stored at {@code 3 * i} onwards.
+     */
+    private ManagedObject[] roundTripAll(final ManagedObject[] objects,
+                                         final ByteArena.Blob[] blobs,
+                                         final long[] samples)
+            throws Exception {
+        final ManagedObject[] copies = new ManagedObject[objects.length];
+        forEachRange(objects.length, new Range() {
+            @Override
+            public void run(int from, int to) throws Exception {
+                roundTripRange(objects, copies, blobs, samples, from, to);
+            }
+        });
+        return copies;
+    }
+
+    /**
+     * Work on a range of indexes that can run on any thread.
+     */
+    private interface Range {
+        void run(int from, int to) throws Exception;
+    }
+
+    /**
+     * Runs the work for every index from {@code 0} up to {@code length},
+     * split across the serialization pool when parallel serialization is
+     * enabled.
+     */
+    private void forEachRange(final int length, final Range range)
+            throws Exception {
+        int parallelism = serializationParallelism;
+        if (parallelism == 1 || length < 2 * parallelism) {
+            range.run(0, length);
+            return;
+        }
+
+        //the calling thread and parallelism - 1 pool threads take chunks
+        //in turn, a few per thread to even out the load
+        int chunks = parallelism * 4;
+        final int chunkSize = (length + chunks - 1) / chunks;
+        final AtomicInteger nextChunk = new AtomicInteger();
+        Callable<Void> worker = new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                int from;
+                while ((from = nextChunk.getAndIncrement() * chunkSize)
+                       < length) {
+                    range.run(from, Math.min(length, from + chunkSize));
+                }
+                return null;
+            }
+        };
+        List<Future<Void>> results = new ArrayList<Future<Void>>(parallelism);
+        for (int i = 1; i < parallelism; i++) {
+            results.add(serializationPool.submit(worker));
+        }
+
+        Exception failure = null;
+        try {
+            worker.call();
+        } catch (Exception e) {
+            failure = e;
+        }
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                if (failure == null) {
+                    failure = (Exception) cause;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Round-trips the objects from index {@code from} up to {@code to} on
+     * the calling thread.
+     */
+    private void roundTripRange(ManagedObject[] objects,
+                                ManagedObject[] copies,
+                                ByteArena.Blob[] blobs, long[] samples,
+                                int from, int to) throws Exception {
+        SerializationContext context = serializationContext.get();
+        for (int i = from; i < to; i++) {
+            if (blobs != null) {
+                blobs[i] = arena.put(context.serialize(objects[i]));
+            } else {
+                copies[i] = context.roundTrip(objects[i]);
+            }
+            if (samples != null) {
+                samples[3 * i] = context.lastSize();
+                samples[3 * i + 1] = context.lastWriteNanos();
+                samples[3 * i + 2] = context.lastReadNanos();
+            }
+        }
+    }
+
+    /**
+     * Adds the samples taken at a transaction boundary to the profile,
+     * attributing each object to its class and to the names bound to it.
+     */
+    private void recordProfile(SerializationProfile profile, long[] ids,
+                               ManagedObject[] objects, long[] samples) {
+        LongHashMap<List<String>> names = new LongHashMap<List<String>>();
+        for (Map.Entry<String, Long> binding : bindings.entrySet()) {
+            List<String> list = names.get(binding.getValue());
+            if (list == null) {
+                list = new ArrayList<String>(1);
+                names.put(binding.getValue(), list);
+            }
+            list.add(binding.getKey());
+        }
+
+        profile.boundary();
+        for (int i = 0; i < ids.length; i++) {
+            profile.record(objects[i].getClass(), names.get(ids[i]),
+                           samples[3 * i], samples[3 * i + 1],
+                           samples[3 * i + 2]);
+        }
+    }
+
+    /**
+     * Runs the detector over each of the objects, failing if the detector
+     * is strict and any embedded object is found.
+     */
+    private void detectEmbeddedObjects(EmbeddedObjectDetector detector,
+                                       long[] ids, ManagedObject[] objects)
+            throws IOException {
+        List<EmbeddedObjectDetector.Embedding> found =
+                new ArrayList<EmbeddedObjectDetector.Embedding>();
+        for (int i = 0; i < ids.length; i++) {
+            found.addAll(detector.analyze(ids[i], objects[i]));
+        }
+        if (detector.isStrict() && !found.isEmpty()) {
+            StringBuilder message = new StringBuilder(
+                    "Managed objects held without a ManagedReference:");
+            for (EmbeddedObjectDetector.Embedding embedding : found) {
+                message.append("\n  ").append(embedding);
+            }
+            throw new IllegalStateException(message.toString());
+        }
+    }
+
+    /**
+     * Serializes the object and reads it back, returning the fresh copy.
+     */
+    private ManagedObject roundTrip(ManagedObject m) throws Exception {
+        return serializationContext.get().roundTrip(m);
+    }
+
+    /**
+     * Verify that the object implements both ManagedObject
+     * and Serializable
+     * @param object
+     */
+    private void checkArgument(Object object) {
+        if (object == null) {
+            throw new NullPointerException("The object must not be null");
+        }
+        if (!(object instanceof ManagedObject)) {
+            throw new IllegalArgumentException(
+                    "Object does not implement ManagedObject: " +
+                    System.identityHashCode(object));
+        }
+        if (!(object instanceof Serializable)) {
+            throw new IllegalArgumentException(
+                    "Object does not implement Serializable: " +
+                    System.identityHashCode(object));
+        }
+    }
+
+    /**
+     * Verify that the object has not been previously removed
+     * from the data store
+     * @param object
+     */
+    private void checkRemoved(Object object) {
+        if(tombstones.contains(object)) {
+            throw new ObjectNotFoundException(
+                    "Object has been previously removed from the " +
+                    "data store: " +
+                    System.identityHashCode(object));
+        }
+    }
+
+    /**
+     * Looks up the id bound to the name
+     * @param name
+     * @return the id bound to the name
+     */
+    private long getBoundId(String name) {
+        checkNull(name);
+        TransactionContext txn = transaction.get();
+        if (txn != null) {
+            txn.nameRead(name);
+        }
+        Long id = bindings.get(name);
+        if (id == null) {
+            throw new NameNotBoundException(
+                    "No binding for " + name + " in the data store");
+        }
+        return id;
+    }
+
+    /**
+     * Verify that the name is not null
+     * @param name
+     */
+    private void checkNull(String name) {
+       if(name == null) {
+           throw new NullPointerException("The name must not be null");
+       }
+    }
+
+    /**
+     * Verify that a transaction is active on the current thread
+     * @return the active transaction
+     */
+    private TransactionContext checkTransaction() {
+        TransactionContext txn = transaction.get();
+        if (txn == null) {
+            throw new IllegalStateException("No transaction active");
+        }
+        return txn;
+    }
+
+    /**
+     * Returns the id of the object if it is a private copy made by the
+     * isolated transaction, otherwise {@code null}.
+     */
+    private static Long copyId(TransactionContext txn, Object object) {
+        return (txn != null && txn.isolated) ? txn.copyId(object) : null;
+    }
+
+    /**
+     * Takes a snapshot of the object before it is updated, if the
+     * transaction has not already done so.
+     */
+    private void recordUpdate(TransactionContext txn, long id,
+                              ManagedObject object) {
+        if (txn != null && txn.undoLog.needsSnapshot(id)) {
+            txn.undoLog.objectUpdated(id, copyOf(id, object));
+        }
+    }
+
+    /**
+     * Undoes the changes recorded in the transaction's undo log, in
+     * reverse order.
+     */
+    private void rollback(TransactionContext txn) {
+        List<UndoLog.Entry> entries = txn.undoLog.entries();
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            UndoLog.Entry entry = entries.get(i);
+            switch (entry.kind) {
+            case BINDING:
+                unshareBindings();
+                if (entry.previousId == null) {
+                    bindings.remove(entry.name);
+                } else {
+                    bindings.put(entry.name, entry.previousId);
+                }
+                break;
+            case ADDED:
+                ManagedObject added = store.remove(entry.id);
+                if (added != null) {
+                    idMap.remove(added);
+                    unindexObject(entry.id, added.getClass());
+                }
+                dirty.remove(entry.id);
+                if (privateObjects != null) {
+                    privateObjects.remove(entry.id);
+                }
+                break;
+            case REMOVED:
+                unshareTombstones();
+                tombstones.remove(entry.object);
+                tombstones.remove(entry.argument);
+                restoreObject(entry.id, entry.object);
+                break;
+            case UPDATED:
+                restoreObject(entry.id, entry.object);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Ends the transaction on the current thread, and forgets the
+     * committed transactions that can no longer conflict with any active
+     * transaction.
+     */
+    private void endTransaction(TransactionContext txn) {
+        transaction.remove();
+        txn.clearCopies();
+        int count = activeStarts.get(txn.startSequence);
+        if (count == 1) {
+            activeStarts.remove(txn.startSequence);
+        } else {
+            activeStarts.put(txn.startSequence, count - 1);
+        }
+
+        if (activeStarts.isEmpty()) {
+            committed.clear();
+        } else {
+            long oldest = activeStarts.firstKey();
+            int stale = 0;
+            while (stale < committed.size() &&
+                   committed.get(stale).commitSequence <= oldest) {
+                stale++;
+            }
+            committed.subList(0, stale).clear();
+        }
+        invalidateReferences();
+    }
+
+    /**
+     * Returns the transaction active on the current thread, or
+     * {@code null}.
+     */
+    TransactionContext currentTransaction() {
+        return transaction.get();
+    }
+
+    /**
+     * Returns the number of transaction boundaries simulated so far.
+     * References created by this data store are only active while it is
+     * unchanged.
+     */
+    long transactionEpoch() {
+        return transactionEpoch;
+    }
+
+    /**
+     * Returns the epoch against which references may cache the objects
+     * they retrieve.  The epoch changes whenever an object is replaced or
+     * removed.  It is {@link #NO_EPOCH} while a transaction is active,
+     * concurrent mode is enabled, or access statistics or a latency
+     * estimator are set, because every access must then be recorded.
+     */
+    long referenceEpoch() {
+        return referenceEpoch;
+    }
+
+    /**
+     * Starts a new reference epoch, so that references no longer use the
+     * objects they have cached.
+     */
+    private void invalidateReferences() {
+        epochCounter++;
+        referenceEpoch = (concurrent || !activeStarts.isEmpty() ||
+                          accessStatistics != null ||
+                          latencyEstimator != null)
+                ? NO_EPOCH : epochCounter;
+    }
+
+    /**
+     * Puts the object back into the data store with the given id,
+     * replacing whichever object currently has that id.
+     */
+    private void restoreObject(long id, ManagedObject object) {
+        invalidateReferences();
+        ManagedObject current = store.put(id, object);
+        if (current != null) {
+            idMap.remove(current);
+        }
+        idMap.put(object, id);
+        indexObject(id, object.getClass());
+        if (dirty.containsKey(id)) {
+            dirty.put(id, object);
+        }
+        if (privateObjects != null) {
+            privateObjects.put(id, object);
+        }
+    }
+
+    /**
+     * Returns a fresh serialized copy of the object.
+     */
+    private ManagedObject copyOf(long id, ManagedObject object) {
+        try {
+            return roundTrip(object);
+        } catch (Exception e) {
+            throw new IllegalStateException(
+                    "Unable to copy object: " + id, e);
+        }
+    }
+
+    /**
+     * Deserializes the object with the given id, if it is held serialized,
+     * and puts it back in the data store.
+     *
+     * @param id the id of the object
+     * @return the object, or {@code null} if no object with the id is
+     *         held serialized
+     */
+    private ManagedObject materialize(long id) {
+        ByteArena.Blob blob = serialized.get(id);
+        if (blob == null) {
+            return null;
+        }
+
+        ManagedObject object = deserialize(id, blob);
+        serialized.remove(id);
+        serializedBytes -= blob.length;
+        store.put(id, object);
+        idMap.put(object, id);
+        if (privateObjects != null) {
+            privateObjects.put(id, object);
+        }
+        return object;
+    }
+
+    /**
+     * Deserializes every object held serialized.
+     */
+    private void materializeAll() {
+        for (long id : serialized.keys()) {
+            materialize(id);
+        }
+    }
+
+    /**
+     * Reads an object from its serialized form.
+     */
+    private ManagedObject deserialize(long id, ByteArena.Blob blob) {
+        try {
+            return serializationContext.get().deserialize(arena.get(blob));
+        } catch (Exception e) {
+            throw new IllegalStateException(
+                    "Unable to deserialize object: " + id, e);
+        }
+    }
+
+    /**
+     * Copies the serialized objects into a new arena once most of the
+     * current one holds the bytes of objects that have since been
+     * retrieved or rewritten.
+     */
+    private void compactArena() {
+        if (arena.allocated() <= 2 * serializedBytes + ByteArena.CHUNK_SIZE) {
+            return;
+        }
+        ByteArena compacted = new ByteArena(arena.isDirect());
+        for (long id : serialized.keys()) {
+            serialized.put(id, compacted.put(arena.get(serialized.get(id))));
+        }
+        arena = compacted;
+    }
+
+    /**
+     * Copies the name bindings if they are shared with a fork, so that
+     * they can be modified.
+     */
+    private void unshareBindings() {
+        if (bindingsShared) {
+            bindings = new TreeMap<String, Long>(bindings);
+            bindingsShared = false;
+        }
+    }
+
+    /**
+     * Copies the tombstones if they are shared with a fork, so that they
+     * can be modified.
+     */
+    private void unshareTombstones() {
+        if (tombstonesShared) {
+            tombstones = tombstones.copy();
+            tombstonesShared = false;
+        }
+    }
+
+    /**
+     * Returns a copy of the class index, sharing the chunks of the id
+     * table of each class.
+     */
+    private static Map<Class<?>, CopyOnWriteLongHashMap<Boolean>> copyIndex(
+            Map<Class<?>, CopyOnWriteLongHashMap<Boolean>> index) {
+        Map<Class<?>, CopyOnWriteLongHashMap<Boolean>> copy =
+                new HashMap<Class<?>, CopyOnWriteLongHashMap<Boolean>>();
+        for (Map.Entry<Class<?>, CopyOnWriteLongHashMap<Boolean>> entry
+                : index.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().copy());
+        }
+        return copy;
+    }
+
+    /**
+     * Returns this data store's own copy of the object with the given id.
+     * If the object is shared with a fork, it is copied and the copy
+     * replaces it in this data store.
+     *
+     * @param id the id of the object
+     * @param object the object currently stored with the id
+     * @return the object, or the copy that replaced it
+     */
+    private ManagedObject ownCopy(long id, ManagedObject object) {
+        if (privateObjects == null || privateObjects.containsKey(id)) {
+            return object;
+        }
+
+        ManagedObject copy = copyOf(id, object);
+        invalidateReferences();
+        store.put(id, copy);
+        idMap.remove(object);
+        idMap.put(copy, id);
+        privateObjects.put(id, copy);
+        if (dirty.containsKey(id)) {
+            dirty.put(id, copy);
+        }
+        return copy;
+    }
+
+    /**
+     * Adds the object to the backing data store map.  If the object
+     * is already in the map, no changes are made and its id is simply
+     * returned.  Otherwise, a new id is assigned to this object,
+     * the object is stored, and the id is returned.
+     *
+     * @param object the object to put into the data store
+     * @return the id of the object in the data store
+     */
+    private long addToDataStore(ManagedObject object) {
+        TransactionContext txn = transaction.get();
+        Long id = copyId(txn, object);
+        if (id == null) {
+            id = idMap.get(object);
+        }
+        if (id == null) {
+            id = masterId.getAndIncrement();
+            storeNewObject(id, object, txn);
+        }
+        return id;
+    }
+
+    /**
+     * Adds each of the objects to the backing data store map, as
+     * {@link #addToDataStore} does.  Every object is validated before any
+     * is added, the ids of the new objects are allocated as one range, and
+     * the tables that hold them are grown once to their final size.
+     *
+     * @param objects the objects to put into the data store
+     * @return the ids of the objects, in the same order
+     */
+    private long[] addAllToDataStore(Collection<?> objects) {
+        Object[] array = objects.toArray();
+        for (Object object : array) {
+            checkArgument(object);
+            checkRemoved(object);
+        }
+
+        //find the objects that are already stored, and count the others
+        TransactionContext txn = transaction.get();
+        long[] ids = new long[array.length];
+        int added = 0;
+        for (int i = 0; i < array.length; i++) {
+            Long id = copyId(txn, array[i]);
+            if (id == null) {
+                id = idMap.get(array[i]);
+            }
+            if (id == null) {
+                ids[i] = -1;
+                added++;
+            } else {
+                ids[i] = id;
+            }
+        }
+        if (added == 0) {
+            return ids;
+        }
+
+        store.ensureCapacity(store.size() + added);
+        idMap.ensureCapacity(idMap.size() + added);
+        dirty.ensureCapacity(dirty.size() + added);
+        if (privateObjects != null) {
+            privateObjects.ensureCapacity(privateObjects.size() + added);
+        }
+
+        //an object may appear more than once, in which case it is in the
+        //id map by the time it is seen again, and some ids in the range
+        //go unused
+        long next = masterId.getAndAdd(added);
+        for (int i = 0; i < array.length; i++) {
+            if (ids[i] == -1) {
+                Long id = idMap.get(array[i]);
+                if (id != null) {
+                    ids[i] = id;
+                } else {
+                    ids[i] = next++;
+                    storeNewObject(ids[i], (ManagedObject) array[i], txn);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the class index, first building it if it has not been
+     * built.  Objects held serialized are deserialized to find their
+     * class, but stay serialized.
+     */
+    private Map<Class<?>, CopyOnWriteLongHashMap<Boolean>> classIndex() {
+        if (classIndex == null) {
+            classIndex =
+                new HashMap<Class<?>, CopyOnWriteLongHashMap<Boolean>>();
+            for (long id : store.keys()) {
+                indexObject(id, store.get(id).getClass());
+            }
+            for (long id : serialized.keys()) {
+                ManagedObject object = deserialize(id, serialized.get(id));
+                indexObject(id, object.getClass());
+            }
+        }
+        return classIndex;
+    }
+
+    /**
+     * Adds an id to the class index, if it has been built.
+     */
+    private void indexObject(long id, Class<?> type) {
+        if (classIndex == null) {
+            return;
+        }
+        CopyOnWriteLongHashMap<Boolean> ids = classIndex.get(type);
+        if (ids == null) {
+            ids = new CopyOnWriteLongHashMap<Boolean>();
+            classIndex.put(type, ids);
+        }
+        ids.put(id, Boolean.TRUE);
+    }
+
+    /**
+     * Removes an id from the class index, if it has been built.
+     */
+    private void unindexObject(long id, Class<?> type) {
+        if (classIndex == null) {
+            return;
+        }
+        CopyOnWriteLongHashMap<Boolean> ids = classIndex.get(type);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                classIndex.remove(type);
+            }
+        }
+    }
+
+    /**
+     * Stores an object that is new to the data store under the given id.
+     */
+    private void storeNewObject(long id, ManagedObject object,
+                                TransactionContext txn) {
+        store.put(id, object);
+        idMap.put(object, id);
+        indexObject(id, object.getClass());
+        dirty.put(id, object);
+        if (latencyEstimator != null) {
+            latencyEstimator.objectCreated(id);
+        }
+        if (privateObjects != null) {
+            privateObjects.put(id, object);
+        }
+        if (txn != null) {
+            txn.undoLog.objectAdded(id);
+            if (txn.isolated) {
+                //the new object is already private to the transaction
+                txn.addCopy(id, object);
+            }
+        }
+    }
+
+    /**
+     * Creates a source of per-thread serialization contexts for the codec.
+     */
+    private static ThreadLocal<SerializationContext> newSerializationContext(
+            final SerializationCodec codec) {
+        return new ThreadLocal<SerializationContext>() {
+            @Override
+            protected SerializationContext initialValue() {
+                return new SerializationContext(codec);
+            }
+        };
+    }
+
+    /**
+     * The result of {@link #getObjectsOfType}: a fixed list of ids whose
+     * objects are retrieved as they are accessed.
+     */
+    private static final class ObjectList<T> extends AbstractList<T>
+            implements RandomAccess {
+        private final MockDataManager manager;
+        private final Class<T> type;
+        private final long[] ids;
+
+        ObjectList(MockDataManager manager, Class<T> type, long[] ids) {
+            this.manager = manager;
+            this.type = type;
+            this.ids = ids;
+        }
+
+        @Override
+        public T get(int index) {
+            if (index < 0 || index >= ids.length) {
+                throw new IndexOutOfBoundsException(
+                        "Index: " + index + ", size: " + ids.length);
+            }
+            return type.cast(manager.getObjectUncounted(ids[index]));
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+    }
+
+    /**
+     * Creates the daemon worker threads used for parallel serialization.
+     */
+    private static class SerializationThreadFactory implements ThreadFactory {
+        private final AtomicLong count = new AtomicLong();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "MockDataManager-serializer-" +
+                                          count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -12,92 +12,164 @@ import com.sun.sgs.app.TransactionNotActiveException;
 
 /**
  * This is a simple mockup of a {@link ManagedReference}. It stores the
- * id of the associated ManagedObject.  It always requests
- * an object by polling the backing {@link MockDataManager} with this id.
+ * id of the associated ManagedObject, and requests the object
+ * from the backing {@link MockDataManager} with this id.  <p>
+ *
+ * A reference created by a {@code MockDataManager} resolves directly
+ * against that data store; a deserialized reference finds its data store
+ * through the {@code AppContext} the first time it is used.  The object
+ * retrieved is then cached in the reference until the data store's
+ * reference epoch changes, so repeated calls between transaction
+ * boundaries only read a field.
  */
 public class MockManagedReference<T> implements ManagedReference<T>,
                                                 Serializable {
 
-    private static final long serialVersionUID = 1L;
+    /**
+     * Version 2 holds the id as a {@code long} rather than a
+     * {@code BigInteger}; references serialized by version 1 can no
+     * longer be read.
+     */
+    private static final long serialVersionUID = 2L;
+    /**
+     * The creation epoch of a reference that is never deactivated.
+     */
+    private static final long ALWAYS_ACTIVE = -1;
     /**
      * The id of the associated {@code ManagedObject}
      */
-    private final BigInteger id;
+    private final long id;
     /**
-     * A boolean indicating whether or not this {@code ManagedReference}
-     * is still in an active state.  If it is not active, attempts to 
-     * retrieve the associated {@code ManagedObject} will throw an
-     * exception.
+     * The transaction epoch of the owning data store when this
+     * {@code ManagedReference} was created, or {@link #ALWAYS_ACTIVE}.
+     * Once the data store moves to a new epoch the reference is no longer
+     * active, and attempts to retrieve the associated
+     * {@code ManagedObject} will throw an exception.
      */
-    private transient boolean active;
+    private transient long epoch;
+    /**
+     * The data store that resolves this reference, or {@code null} until
+     * it is first used if the reference was not created by a data store.
+     */
+    private transient MockDataManager owner;
+    /**
+     * The object last retrieved, or {@code null}.
+     */
+    private transient Object cached;
+    /**
+     * The reference epoch of the data store when the object was cached.
+     */
+    private transient long cachedEpoch;
+    /**
+     * Whether the cached object was retrieved for update.
+     */
+    private transient boolean cachedForUpdate;
 
-    public MockManagedReference(BigInteger id) {
+    public MockManagedReference(long id) {
+        this.id = id;
+        this.epoch = ALWAYS_ACTIVE;
+    }
+
+    /**
+     * Creates a reference that resolves against the given data store, and
+     * is active until the data store's transaction epoch changes.
+     */
+    MockManagedReference(long id, MockDataManager owner, long epoch) {
         this.id = id;
-        this.active = true;
+        this.owner = owner;
+        this.epoch = epoch;
+    }
+
+    /**
+     * Creates a reference to the object with the given id.
+     *
+     * @throws IllegalArgumentException if the id does not fit in a
+     *         {@code long}
+     */
+    public MockManagedReference(BigInteger id) {
+        this(toLong(id));
+    }
+
+    private static long toLong(BigInteger id) {
+        if (id.bitLength() > 63) {
+            throw new IllegalArgumentException(
+                    "Object id out of range: " + id);
+        }
+        return id.longValue();
     }
 
     @Override
     public T get() {
-        return internalGet();
+        return internalGet(false);
     }
 
     @Override
     public T getForUpdate() {
-        return internalGet();
+        return internalGet(true);
     }
 
     @SuppressWarnings("unchecked")
-    private T internalGet() {
-        if (!active) {
+    private T internalGet(boolean forUpdate) {
+        if (epoch != ALWAYS_ACTIVE && epoch != owner.transactionEpoch()) {
             throw new TransactionNotActiveException(
                     "Transaction not active");
         }
-        DataManager dm = AppContext.getDataManager();
-        if (!(dm instanceof MockDataManager)) {
-            throw new IllegalStateException(
-                    "MockManagedReference cannot be used without " +
-                    " a backing MockDataManager");
+        MockDataManager mdm = owner;
+        if (mdm == null) {
+            DataManager dm = AppContext.getDataManager();
+            if (!(dm instanceof MockDataManager)) {
+                throw new IllegalStateException(
+                        "MockManagedReference cannot be used without " +
+                        " a backing MockDataManager");
+            }
+            mdm = (MockDataManager) dm;
+            owner = mdm;
         }
-        return (T) ((MockDataManager) dm).getObjectWithId(id);
+
+        long epoch = mdm.referenceEpoch();
+        if (cached != null && cachedEpoch == epoch &&
+                (cachedForUpdate || !forUpdate)) {
+            return (T) cached;
+        }
+
+        Object object = forUpdate ? mdm.getObjectForUpdate(id)
+                                  : mdm.getObjectWithId(id);
+        if (epoch != MockDataManager.NO_EPOCH &&
+                epoch == mdm.referenceEpoch()) {
+            cachedForUpdate = forUpdate;
+            cached = object;
+            cachedEpoch = epoch;
+        }
+        return (T) object;
     }
 
     @Override
     public BigInteger getId() {
-        return id;
+        return BigInteger.valueOf(id);
     }
 
     @Override
     public boolean equals(Object object) {
         if (object instanceof MockManagedReference) {
-            return ((MockManagedReference) object).id.equals(id);
+            return ((MockManagedReference) object).id == id;
         }
         return false;
     }
 
     @Override
     public int hashCode() {
-        long oid = id.longValue();
-        return (int) (oid ^ (oid >>> 32)) + 6883;
-    }
-
-    /**
-     * Deactivates this {@code ManagedReference}.  Attempts to retrieve
-     * the associated {@code ManagedObject} while in a deactivated state
-     * will throw an exception.
-     */
-    void deactivate() {
-        this.active = false;
+        return (int) (id ^ (id >>> 32)) + 6883;
     }
 
     /**
      * Reads in a serialized object.  This will initialize the state of
-     * the object to its state from the input stream and will also set
-     * the value of its transient active field to {@code true}.
+     * the object to its state from the input stream and will also mark
+     * it as always active.
      */
     private void readObject(ObjectInputStream in)
             throws IOException, ClassNotFoundException {
         in.defaultReadObject();
-        active = true;
+        epoch = ALWAYS_ACTIVE;
     }
 }
 
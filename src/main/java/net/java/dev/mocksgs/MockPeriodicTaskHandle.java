@@ -17,8 +17,16 @@ public class MockPeriodicTaskHandle extends AbstractMockTaskHandle implements Pe
         this.repeat = repeat;
     }
 
+    /**
+     * Cancels the task, removing it from the task manager's queue so that
+     * it does not run again.
+     */
     public void cancel() {
         cancelled = true;
+        MockTaskManager taskManager = getTaskManager();
+        if (taskManager != null) {
+            taskManager.cancel(this);
+        }
     }
 
     public long getRepeat() {
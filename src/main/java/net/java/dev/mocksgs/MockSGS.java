@@ -1,6 +1,10 @@
 package net.java.dev.mocksgs;
 
+import java.util.Collections;
+import java.util.List;
+
 import com.sun.sgs.app.Task;
+import com.sun.sgs.app.TaskManager;
 import com.sun.sgs.app.AppContext;
 import com.sun.sgs.internal.InternalContext;
 
@@ -42,4 +46,47 @@ public class MockSGS {
         // go through the data manager and make sure all objects can serialize
         ((MockDataManager)AppContext.getDataManager()).serializeDataStore();
     }
+
+    /**
+     * Runs the task as {@link #run} does, and returns the sizes and
+     * serialization times of the objects serialized afterward.  Any
+     * profile already set on the data manager is restored afterward, and
+     * does not include this run.
+     *
+     * @param task the task to run
+     * @return the serialization profile of the run
+     */
+    public static SerializationProfile profile(final Task task)
+            throws Exception {
+        MockDataManager dataManager =
+                (MockDataManager)AppContext.getDataManager();
+        SerializationProfile previous = dataManager.getSerializationProfile();
+        SerializationProfile profile = new SerializationProfile();
+        dataManager.setSerializationProfile(profile);
+        try {
+            run(task);
+        } finally {
+            dataManager.setSerializationProfile(previous);
+        }
+        return profile;
+    }
+
+    /**
+     * Finds the objects in the data manager that can no longer be
+     * reached from any name binding or scheduled task, and so would leak
+     * in a real data store.
+     *
+     * @return the unreachable objects
+     * @see MockDataManager#findUnreachable
+     */
+    public static ReachabilityReport findUnreachable() throws Exception {
+        MockDataManager dataManager =
+                (MockDataManager)AppContext.getDataManager();
+        List<Object> roots = Collections.emptyList();
+        TaskManager taskManager = AppContext.getTaskManager();
+        if (taskManager instanceof MockTaskManager) {
+            roots = ((MockTaskManager)taskManager).getTaskRoots();
+        }
+        return dataManager.findUnreachable(roots);
+    }
 }
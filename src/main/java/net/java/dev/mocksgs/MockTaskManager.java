@@ -1,12 +1,14 @@
 package net.java.dev.mocksgs;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.sun.sgs.app.AppContext;
+import com.sun.sgs.app.DataManager;
 import com.sun.sgs.app.ExceptionRetryStatus;
 import com.sun.sgs.app.PeriodicTaskHandle;
 import com.sun.sgs.app.Task;
@@ -27,6 +29,12 @@ import com.sun.sgs.app.TaskManager;
  *
  * This way, you can let time run as fast (or as slow) as desired in your tests.
  *
+ * If transactional execution is enabled with
+ * {@link #setTransactional(boolean)} and the current {@link DataManager}
+ * is a {@link MockDataManager}, each task runs in its own data store
+ * transaction, which is aborted if the task throws an exception, so a
+ * retried task starts again from the state before its failed attempt.
+ *
  * @author j0rg3n
  */
 public class MockTaskManager implements TaskManager {
@@ -34,14 +42,38 @@ public class MockTaskManager implements TaskManager {
     private final static Logger logger =
             Logger.getLogger(MockTaskManager.class.getName());
     /**
-     * Priority queue containing scheduled tasks, in order of execution.
+     * Queue containing scheduled tasks, in order of execution.
+     */
+    private TaskQueue scheduledTaskHandles = new PriorityTaskQueue();
+    /**
+     * The implementation of {@link #scheduledTaskHandles}.
      */
-    private PriorityQueue<AbstractMockTaskHandle> scheduledTaskHandles =
-            new PriorityQueue<AbstractMockTaskHandle>();
+    private TaskQueueType taskQueueType = TaskQueueType.PRIORITY_QUEUE;
     /**
      * The current wall-clock time to the task manager.
      */
     private long mockTime = 0L;
+    /**
+     * Estimated task latency, in nanoseconds, not yet added to
+     * {@link #mockTime} because it is less than a millisecond.
+     */
+    private long mockTimeRemainderNanos = 0L;
+    /**
+     * If {@code true}, tasks run in a {@link MockDataManager} transaction.
+     */
+    private boolean transactional = false;
+    /**
+     * Records the objects and names read and written by each task, or
+     * {@code null}.
+     */
+    private TaskConflictMatrix conflictMatrix = null;
+
+    /**
+     * How a single run of a task finished.
+     */
+    private enum TaskOutcome {
+        COMPLETED, RETRIED, FAILED
+    }
 
     @Override
     public PeriodicTaskHandle schedulePeriodicTask(final Task task,
@@ -54,6 +86,7 @@ public class MockTaskManager implements TaskManager {
         MockPeriodicTaskHandle handle =
                 new MockPeriodicTaskHandle(task, delay, period,
                                            getMockTimeMillis() + delay);
+        handle.setTaskManager(this);
 
         scheduledTaskHandles.add(handle);
         return handle;
@@ -64,9 +97,11 @@ public class MockTaskManager implements TaskManager {
         checkArgument(task);
         checkPositive("Delay", delay);
 
-        scheduledTaskHandles.add(
+        MockScheduledTaskHandle handle =
                 new MockScheduledTaskHandle(task, delay,
-                                            getMockTimeMillis() + delay));
+                                            getMockTimeMillis() + delay);
+        handle.setTaskManager(this);
+        scheduledTaskHandles.add(handle);
     }
 
     @Override
@@ -145,32 +180,208 @@ public class MockTaskManager implements TaskManager {
         AbstractMockTaskHandle nextTask = scheduledTaskHandles.peek();
         if (nextTask != null && nextTask.getScheduleTime() <= mockTime) {
             scheduledTaskHandles.poll();
-            try {
-                // Execute task
-                nextTask.getTask().run();
-
-                // Reschedule periodic tasks
-                if (nextTask instanceof MockPeriodicTaskHandle) {
-                    long repeat = ((MockPeriodicTaskHandle) nextTask).getRepeat();
-                    scheduledTaskHandles.add(new MockPeriodicTaskHandle(nextTask.getTask(),
-                                                                        nextTask.getStart(), repeat, mockTime + repeat));
+            runTask(nextTask);
+        }
+    }
+
+    /**
+     * Runs every task scheduled at or before the given time, in order,
+     * advancing the mock time to each task's tick as it runs, and then to
+     * the given time.  Tasks scheduled by these tasks also run if they
+     * are due by then.
+     *
+     * @param time the mock time to advance to
+     * @return what was run
+     */
+    public ExecutionSummary executeUntil(long time) {
+        return executeUntil(time, Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs the tasks scheduled at or before the given time, in order, as
+     * {@link #executeUntil(long)} does, but stops early once either
+     * budget is used up.  The mock time is then left at the tick of the
+     * last task run.
+     *
+     * @param time the mock time to advance to
+     * @param maxTasks the most tasks to run
+     * @param maxWallMillis the most wall-clock time to spend
+     * @return what was run
+     */
+    public ExecutionSummary executeUntil(long time, int maxTasks,
+                                         long maxWallMillis) {
+        ExecutionSummary summary =
+                execute(time, maxTasks, true, maxWallMillis);
+        if (!summary.isBudgetExhausted()) {
+            mockTime = Math.max(mockTime, time);
+        }
+        return summary;
+    }
+
+    /**
+     * Runs every task scheduled at or before the current tick, including
+     * tasks they schedule for the current tick, without advancing time.
+     *
+     * @return what was run
+     */
+    public ExecutionSummary drainCurrentTick() {
+        return drainCurrentTick(Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs the tasks scheduled at or before the current tick, as
+     * {@link #drainCurrentTick()} does, but stops early once either budget
+     * is used up.  A budget is needed to stop a task that always asks to
+     * be retried.
+     *
+     * @param maxTasks the most tasks to run
+     * @param maxWallMillis the most wall-clock time to spend
+     * @return what was run
+     */
+    public ExecutionSummary drainCurrentTick(int maxTasks,
+                                             long maxWallMillis) {
+        return execute(mockTime, maxTasks, true, maxWallMillis);
+    }
+
+    /**
+     * Runs the next {@code count} tasks as repeated calls to
+     * {@link #executeNextTaskTick()} would, stopping early if the queue
+     * empties.
+     *
+     * @param count the number of tasks to run
+     * @return what was run
+     */
+    public ExecutionSummary executeTasks(int count) {
+        return executeTasks(count, Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs the next {@code count} tasks, as {@link #executeTasks(int)}
+     * does, but stops early once the wall-clock budget is used up.  The
+     * count is not a budget: the summary only reports the budget as
+     * exhausted if the wall-clock budget stopped the run.
+     *
+     * @param count the number of tasks to run
+     * @param maxWallMillis the most wall-clock time to spend
+     * @return what was run
+     */
+    public ExecutionSummary executeTasks(int count, long maxWallMillis) {
+        return execute(Long.MAX_VALUE, count, false, maxWallMillis);
+    }
+
+    /**
+     * Runs tasks in order while they are scheduled at or before the given
+     * time and the budgets allow, advancing the mock time to each task's
+     * tick.  Reaching {@code maxTasks} only counts as exhausting a budget
+     * if {@code taskBudget} is set.
+     */
+    private ExecutionSummary execute(long time, int maxTasks,
+                                     boolean taskBudget, long maxWallMillis) {
+        checkPositive("Task budget", maxTasks);
+        checkPositive("Wall-clock budget", maxWallMillis);
+        long started = System.nanoTime();
+        long budgetNanos = maxWallMillis >= Long.MAX_VALUE / 1000000L
+                ? Long.MAX_VALUE : maxWallMillis * 1000000L;
+        int run = 0;
+        int retries = 0;
+        int failures = 0;
+        boolean exhausted = false;
+
+        AbstractMockTaskHandle nextTask;
+        while ((nextTask = scheduledTaskHandles.peek()) != null &&
+               nextTask.getScheduleTime() <= time) {
+            if (run >= maxTasks) {
+                exhausted = taskBudget;
+                break;
+            }
+            if (System.nanoTime() - started >= budgetNanos) {
+                exhausted = true;
+                break;
+            }
+            scheduledTaskHandles.poll();
+            // Compensate for tasks scheduled in the past (for whatever reason)
+            mockTime = Math.max(nextTask.getScheduleTime(), mockTime);
+            run++;
+            switch (runTask(nextTask)) {
+            case RETRIED:
+                retries++;
+                break;
+            case FAILED:
+                failures++;
+                break;
+            default:
+                break;
+            }
+        }
+        return new ExecutionSummary(run, retries, failures, exhausted,
+                                    System.nanoTime() - started);
+    }
+
+    /**
+     * Runs a task that has been taken off the queue, in its own
+     * transaction, and reschedules it if it is periodic or asks to be
+     * retried.
+     *
+     * @return how the task finished
+     */
+    private TaskOutcome runTask(AbstractMockTaskHandle nextTask) {
+        TaskOutcome outcome = TaskOutcome.COMPLETED;
+        LatencyEstimator estimator = beginTaskAccounting();
+        MockDataManager dataManager = beginTransaction();
+        TransactionContext txn = null;
+        if (dataManager != null && conflictMatrix != null) {
+            txn = dataManager.currentTransaction();
+        }
+        try {
+            // Execute task
+            Task task = nextTask.getTask();
+            task.run();
+
+            if (dataManager != null) {
+                dataManager.commit();
+            }
+
+            // Reschedule periodic tasks, unless the task cancelled itself
+            if (nextTask instanceof MockPeriodicTaskHandle) {
+                MockPeriodicTaskHandle periodic = (MockPeriodicTaskHandle) nextTask;
+                if (!periodic.isCancelled()) {
+                    periodic.setScheduleTime(mockTime + periodic.getRepeat());
+                    scheduledTaskHandles.add(periodic);
                 }
-            } catch (Exception e) {
-                if (e instanceof ExceptionRetryStatus) {
-                    if (((ExceptionRetryStatus) e).shouldRetry()) {
-                        logger.log(Level.SEVERE, "Task requests retry, rescheduling it.", e);
-
-                        // Reschedule task immediately, regardless of task period.
-                        // FIXME Schedule for next "tick slice".
-                        scheduledTaskHandles.add(nextTask);
-                    } else {
-                        logger.log(Level.SEVERE, "Task does not want to be retried, not rescheduling.", e);
-                    }
+            }
+            if (txn != null) {
+                conflictMatrix.record(task.getClass(), txn);
+            }
+        } catch (Exception e) {
+            // Roll back whatever the task changed before deciding
+            // whether to retry it
+            // A commit that fails has already ended the transaction
+            if (dataManager != null && dataManager.isTransactionActive()) {
+                dataManager.abort();
+            }
+            outcome = TaskOutcome.FAILED;
+            if (e instanceof ExceptionRetryStatus) {
+                if (((ExceptionRetryStatus) e).shouldRetry()) {
+                    logger.log(Level.SEVERE, "Task requests retry, rescheduling it.", e);
+
+                    // Reschedule task immediately, regardless of task period.
+                    // FIXME Schedule for next "tick slice".
+                    scheduledTaskHandles.add(nextTask);
+                    outcome = TaskOutcome.RETRIED;
                 } else {
-                    logger.log(Level.SEVERE, "Task failed with a non-retryable exception, not rescheduling.", e);
+                    logger.log(Level.SEVERE, "Task does not want to be retried, not rescheduling.", e);
                 }
+            } else {
+                logger.log(Level.SEVERE, "Task failed with a non-retryable exception, not rescheduling.", e);
+            }
+        } catch (Error e) {
+            if (dataManager != null && dataManager.isTransactionActive()) {
+                dataManager.abort();
             }
+            throw e;
         }
+        advanceClock(estimator);
+        return outcome;
     }
 
     /**
@@ -190,8 +401,170 @@ public class MockTaskManager implements TaskManager {
      */
     public void setMockTimeMillis(long time) {
         this.mockTime = time;
+        this.mockTimeRemainderNanos = 0L;
+    }
+
+
+    /**
+     * Returns whether each task runs in its own {@link MockDataManager}
+     * transaction.
+     */
+    public boolean isTransactional() {
+        return transactional;
+    }
+
+    /**
+     * Sets whether each task runs in its own {@link MockDataManager}
+     * transaction, which is rolled back if the task fails.  Defaults to
+     * {@code false}, since a transaction stops references from caching
+     * the objects they resolve and snapshots every object updated.
+     */
+    public void setTransactional(boolean transactional) {
+        this.transactional = transactional;
+    }
+
+    /**
+     * Returns how the scheduled tasks are kept in order.
+     */
+    public TaskQueueType getTaskQueueType() {
+        return taskQueueType;
+    }
+
+    /**
+     * Sets how the scheduled tasks are kept in order, moving any tasks
+     * already scheduled to the new queue.  Defaults to
+     * {@link TaskQueueType#PRIORITY_QUEUE}.
+     */
+    public void setTaskQueueType(TaskQueueType taskQueueType) {
+        if (taskQueueType == this.taskQueueType) {
+            return;
+        }
+        TaskQueue queue = taskQueueType == TaskQueueType.TIMING_WHEEL
+                ? new TimingWheelTaskQueue() : new PriorityTaskQueue();
+        for (AbstractMockTaskHandle handle : scheduledTaskHandles) {
+            queue.add(handle);
+        }
+        this.scheduledTaskHandles = queue;
+        this.taskQueueType = taskQueueType;
+    }
+
+    /**
+     * Removes a cancelled task from the queue.
+     */
+    void cancel(AbstractMockTaskHandle handle) {
+        scheduledTaskHandles.remove(handle);
+    }
+
+    /**
+     * Returns the matrix that records which tasks would conflict if they
+     * ran concurrently.
+     *
+     * @return the conflict matrix, or {@code null} if none is set
+     */
+    public TaskConflictMatrix getConflictMatrix() {
+        return conflictMatrix;
+    }
+
+    /**
+     * Sets the matrix that records which tasks would conflict if they ran
+     * concurrently.  While a matrix is set, the objects and names read and
+     * written by each task that commits are added to it; since these are
+     * taken from the task's transaction, nothing is recorded unless tasks
+     * are transactional.  By default no matrix is set.
+     *
+     * @param conflictMatrix the conflict matrix, or {@code null}
+     */
+    public void setConflictMatrix(TaskConflictMatrix conflictMatrix) {
+        this.conflictMatrix = conflictMatrix;
+    }
+
+    /**
+     * Returns the roots from which the scheduled tasks refer to managed
+     * objects: a reference to each task that is a managed object, and
+     * each other task itself.
+     */
+    List<Object> getTaskRoots() {
+        List<Object> roots = new ArrayList<Object>(scheduledTaskHandles.size());
+        for (AbstractMockTaskHandle handle : scheduledTaskHandles) {
+            roots.add(handle.getTaskRoot());
+        }
+        return roots;
+    }
+
+    /**
+     * Starts a transaction for the next task, if the current data manager
+     * is a {@link MockDataManager} with no transaction already active.
+     *
+     * @return the data manager, or {@code null} if no transaction was
+     *         started
+     */
+    private MockDataManager beginTransaction() {
+        if (!transactional) {
+            return null;
+        }
+        MockDataManager mock = getMockDataManager();
+        if (mock == null || mock.isTransactionActive()) {
+            return null;
+        }
+        mock.begin();
+        return mock;
+    }
+
+    /**
+     * Starts counting the accesses and estimating the latency of the next
+     * task, if the current data manager is a {@link MockDataManager} with
+     * access statistics or a latency estimator set.
+     *
+     * @return the latency estimator, or {@code null}
+     */
+    private LatencyEstimator beginTaskAccounting() {
+        MockDataManager mock = getMockDataManager();
+        if (mock == null) {
+            return null;
+        }
+        AccessStatistics statistics = mock.getAccessStatistics();
+        if (statistics != null) {
+            statistics.beginTask();
+        }
+        LatencyEstimator estimator = mock.getLatencyEstimator();
+        if (estimator != null) {
+            estimator.beginTask();
+        }
+        return estimator;
     }
 
+    /**
+     * Advances the mock time by the estimated latency of the task just
+     * run, if the latency estimator is set to advance the clock.  The
+     * part of a millisecond left over is carried to the next task, so
+     * that tasks shorter than a millisecond still move the clock.
+     */
+    private void advanceClock(LatencyEstimator estimator) {
+        if (estimator != null && estimator.isAdvancingClock()) {
+            long nanos = mockTimeRemainderNanos + estimator.getTaskNanos();
+            mockTime += nanos / 1000000L;
+            mockTimeRemainderNanos = nanos % 1000000L;
+        }
+    }
+
+    /**
+     * Returns the current data manager if it is a {@link MockDataManager}.
+     *
+     * @return the data manager, or {@code null}
+     */
+    private MockDataManager getMockDataManager() {
+        DataManager dataManager;
+        try {
+            dataManager = AppContext.getDataManager();
+        } catch (IllegalStateException e) {
+            // no managers have been registered
+            return null;
+        }
+        if (!(dataManager instanceof MockDataManager)) {
+            return null;
+        }
+        return (MockDataManager) dataManager;
+    }
 
     /**
      * Verify that the task implements Serializable
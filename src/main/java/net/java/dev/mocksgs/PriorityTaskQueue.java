@@ -0,0 +1,53 @@
+package net.java.dev.mocksgs;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * A {@link TaskQueue} backed by a {@code PriorityQueue}.
+ */
+final class PriorityTaskQueue implements TaskQueue {
+
+    private final PriorityQueue<AbstractMockTaskHandle> handles =
+            new PriorityQueue<AbstractMockTaskHandle>();
+
+    @Override
+    public void add(AbstractMockTaskHandle handle) {
+        handles.add(handle);
+    }
+
+    @Override
+    public AbstractMockTaskHandle peek() {
+        return handles.peek();
+    }
+
+    @Override
+    public AbstractMockTaskHandle poll() {
+        return handles.poll();
+    }
+
+    @Override
+    public boolean remove(AbstractMockTaskHandle handle) {
+        return handles.remove(handle);
+    }
+
+    @Override
+    public int size() {
+        return handles.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return handles.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        handles.clear();
+    }
+
+    @Override
+    public Iterator<AbstractMockTaskHandle> iterator() {
+        return handles.iterator();
+    }
+}
@@ -0,0 +1,132 @@
+package net.java.dev.mocksgs;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The result of {@link MockDataManager#findUnreachable}: the managed
+ * objects that can no longer be reached from any name binding or other
+ * root, grouped by class.  In a real data store such objects are never
+ * reclaimed unless they are removed explicitly, so a test that finds any
+ * has found a leak.  <p>
+ *
+ * The size of an object is the length of its serialized form if the data
+ * store holds it serialized, and its size under JDK serialization
+ * otherwise.
+ */
+public class ReachabilityReport {
+
+    private final long reachable;
+    private final List<BigInteger> unreachableIds = new ArrayList<BigInteger>();
+    private final Map<Class<?>, long[]> byClass =
+            new LinkedHashMap<Class<?>, long[]>();
+    private long unreachableBytes;
+
+    ReachabilityReport(long reachable) {
+        this.reachable = reachable;
+    }
+
+    /**
+     * Returns the number of objects reachable from the roots.
+     *
+     * @return the number of reachable objects
+     */
+    public long getReachableCount() {
+        return reachable;
+    }
+
+    /**
+     * Returns the number of objects that cannot be reached.
+     *
+     * @return the number of unreachable objects
+     */
+    public long getUnreachableCount() {
+        return unreachableIds.size();
+    }
+
+    /**
+     * Returns the total size of the objects that cannot be reached.
+     *
+     * @return the size in bytes
+     */
+    public long getUnreachableBytes() {
+        return unreachableBytes;
+    }
+
+    /**
+     * Returns the ids of the objects that cannot be reached, in ascending
+     * order.
+     *
+     * @return the unreachable ids
+     */
+    public List<BigInteger> getUnreachableIds() {
+        return Collections.unmodifiableList(unreachableIds);
+    }
+
+    /**
+     * Returns the classes of the objects that cannot be reached.
+     *
+     * @return the unreachable classes
+     */
+    public Set<Class<?>> getUnreachableClasses() {
+        return Collections.unmodifiableSet(byClass.keySet());
+    }
+
+    /**
+     * Returns the number of unreachable objects of the given class.
+     *
+     * @param type the class
+     * @return the number of objects
+     */
+    public long getUnreachableCount(Class<?> type) {
+        long[] totals = byClass.get(type);
+        return totals == null ? 0 : totals[0];
+    }
+
+    /**
+     * Returns the total size of the unreachable objects of the given
+     * class.
+     *
+     * @param type the class
+     * @return the size in bytes
+     */
+    public long getUnreachableBytes(Class<?> type) {
+        long[] totals = byClass.get(type);
+        return totals == null ? 0 : totals[1];
+    }
+
+    /**
+     * Returns a table of the unreachable objects by class.
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%d reachable, %d unreachable (%d bytes)%n",
+                                  reachable, unreachableIds.size(),
+                                  unreachableBytes));
+        for (Map.Entry<Class<?>, long[]> entry : byClass.entrySet()) {
+            text.append(String.format("%-40s %10d %12d%n",
+                                      entry.getKey().getName(),
+                                      entry.getValue()[0],
+                                      entry.getValue()[1]));
+        }
+        return text.toString();
+    }
+
+    void addUnreachable(long id, Class<?> type, long bytes) {
+        unreachableIds.add(BigInteger.valueOf(id));
+        long[] totals = byClass.get(type);
+        if (totals == null) {
+            totals = new long[2];
+            byClass.put(type, totals);
+        }
+        totals[0]++;
+        totals[1] += bytes;
+        unreachableBytes += bytes;
+    }
+}
@@ -0,0 +1,79 @@
+package net.java.dev.mocksgs;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import com.sun.sgs.app.ManagedReference;
+
+/**
+ * Serializes an object to find the ids of the managed objects it refers
+ * to through {@code ManagedReference}s, and to measure its serialized
+ * size.  The serialized bytes are counted and discarded.
+ */
+final class ReferenceScanner extends ObjectOutputStream {
+
+    private final CountingOutputStream counter;
+    private final LongHashMap<Boolean> referenced = new LongHashMap<Boolean>();
+
+    private ReferenceScanner(CountingOutputStream counter) throws IOException {
+        super(counter);
+        this.counter = counter;
+        enableReplaceObject(true);
+    }
+
+    /**
+     * Scans an object.
+     *
+     * @param object the object to scan
+     * @return the scanner, holding the results
+     * @throws IOException if the object cannot be serialized
+     */
+    static ReferenceScanner scan(Object object) throws IOException {
+        ReferenceScanner scanner =
+                new ReferenceScanner(new CountingOutputStream());
+        scanner.writeObject(object);
+        scanner.close();
+        return scanner;
+    }
+
+    /**
+     * Returns the ids of the objects referred to.
+     */
+    long[] references() {
+        return referenced.keys();
+    }
+
+    /**
+     * Returns the serialized size of the object.
+     */
+    long size() {
+        return counter.count;
+    }
+
+    @Override
+    protected Object replaceObject(Object object) {
+        if (object instanceof ManagedReference) {
+            referenced.put(((ManagedReference<?>) object).getId().longValue(),
+                           Boolean.TRUE);
+        }
+        return object;
+    }
+
+    /**
+     * Counts the bytes written to it and discards them.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
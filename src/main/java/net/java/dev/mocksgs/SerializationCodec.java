@@ -0,0 +1,69 @@
+package net.java.dev.mocksgs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import com.sun.sgs.app.ManagedObject;
+
+/**
+ * Encodes {@code ManagedObject}s for the {@link MockDataManager} when
+ * it simulates a transaction boundary. <p>
+ *
+ * Register a codec with {@link MockDataManager#setSerializationCodec} in
+ * order to check that an application's own encoding preserves the
+ * state of its managed objects, including any {@code ManagedReference}s
+ * they hold.  <p>
+ *
+ * A pair of streams created by a codec may be used for many objects in
+ * turn.  The output stream is reset between objects, so no object
+ * handles are shared between them, but a codec may keep other state, such
+ * as a table of class descriptors, across the objects it encodes.  A
+ * codec must be safe for use by several threads at once, although each
+ * stream is only used by a single thread.
+ */
+public interface SerializationCodec {
+
+    /**
+     * Creates the stream that objects are written to.
+     *
+     * @param out the underlying stream
+     * @return the object output stream
+     * @throws IOException if the stream header cannot be written
+     */
+    public ObjectOutputStream createOutputStream(final OutputStream out)
+            throws IOException;
+
+    /**
+     * Creates the stream that objects are read from.
+     *
+     * @param in the underlying stream
+     * @return the object input stream
+     * @throws IOException if the stream header cannot be read
+     */
+    public ObjectInputStream createInputStream(final InputStream in)
+            throws IOException;
+
+    /**
+     * Writes a single object to a stream created by this codec.
+     *
+     * @param out the stream to write to
+     * @param object the object to write
+     * @throws IOException if the object cannot be written
+     */
+    public void writeObject(final ObjectOutputStream out,
+                            final ManagedObject object) throws IOException;
+
+    /**
+     * Reads back a single object written by {@link #writeObject}.
+     *
+     * @param in the stream to read from
+     * @return the object read
+     * @throws IOException if the object cannot be read
+     * @throws ClassNotFoundException if the object's class cannot be found
+     */
+    public ManagedObject readObject(final ObjectInputStream in)
+            throws IOException, ClassNotFoundException;
+}
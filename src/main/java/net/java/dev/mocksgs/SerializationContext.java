@@ -0,0 +1,277 @@
+package net.java.dev.mocksgs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+import com.sun.sgs.app.ManagedObject;
+
+/**
+ * Reusable state for serializing and deserializing objects on a single
+ * thread. <p>
+ *
+ * A context keeps one growable buffer and one pair of object streams
+ * open over it.  Each round-trip resets the buffer in place and resets
+ * the output stream, rather than allocating a new buffer, byte array copy
+ * and pair of streams with fresh headers for every object.  Resetting the
+ * stream clears its handle table, so each object is still serialized
+ * independently of the others.  <p>
+ *
+ * Objects can also be serialized without reading them back, and the
+ * bytes deserialized later by any context that uses the same codec.
+ * <p>
+ *
+ * A context must only be used by one thread at a time.
+ */
+final class SerializationContext {
+
+    /**
+     * Creates the streams and encodes each object.
+     */
+    private final SerializationCodec codec;
+    /**
+     * Holds the serialized form of the current object.
+     */
+    private final Buffer buffer = new Buffer();
+    /**
+     * Reads the serialized form back out of the buffer.
+     */
+    private final BufferInput input = new BufferInput();
+    private ObjectOutputStream out;
+    private ObjectInputStream in;
+    /**
+     * Serialized size of the last object round-tripped.
+     */
+    private int lastSize;
+    /**
+     * Nanoseconds taken to serialize the last object round-tripped.
+     */
+    private long lastWriteNanos;
+    /**
+     * Nanoseconds taken to deserialize the last object round-tripped.
+     */
+    private long lastReadNanos;
+
+    SerializationContext(SerializationCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Serializes the object and reads it back, returning the fresh copy.
+     *
+     * @param object the object to copy
+     * @return a deserialized copy of the object
+     * @throws IOException if the object cannot be serialized
+     * @throws ClassNotFoundException if the object cannot be deserialized
+     */
+    ManagedObject roundTrip(ManagedObject object)
+            throws IOException, ClassNotFoundException {
+        boolean success = false;
+        try {
+            if (out == null) {
+                open();
+            }
+            buffer.reset();
+            input.rewind();
+
+            long start = System.nanoTime();
+            out.reset();
+            codec.writeObject(out, object);
+            out.flush();
+            long written = System.nanoTime();
+
+            ManagedObject copy = codec.readObject(in);
+            lastReadNanos = System.nanoTime() - written;
+            lastWriteNanos = written - start;
+            lastSize = buffer.size();
+            if (in.available() != 0 || input.available() != 0) {
+                throw new StreamCorruptedException(
+                        "Data left unread after deserializing " +
+                        object.getClass().getName());
+            }
+            success = true;
+            return copy;
+        } finally {
+            if (!success) {
+                // a failed write or read leaves the streams in an
+                // unknown state, so start again with new ones
+                out = null;
+                in = null;
+            }
+        }
+    }
+
+    /**
+     * Serializes the object without reading it back.
+     *
+     * @param object the object to serialize
+     * @return a view of the serialized form, which is only valid until the
+     *         next use of this context
+     * @throws IOException if the object cannot be serialized
+     */
+    ByteBuffer serialize(ManagedObject object) throws IOException {
+        boolean success = false;
+        try {
+            if (out == null) {
+                open();
+            }
+            buffer.reset();
+            input.rewind();
+
+            long start = System.nanoTime();
+            out.reset();
+            codec.writeObject(out, object);
+            out.flush();
+            lastWriteNanos = System.nanoTime() - start;
+            lastReadNanos = 0;
+            lastSize = buffer.size();
+            success = true;
+            return ByteBuffer.wrap(buffer.array(), 0, buffer.size());
+        } finally {
+            if (!success) {
+                out = null;
+                in = null;
+            }
+        }
+    }
+
+    /**
+     * Reads back an object from the bytes returned by {@link #serialize}
+     * on a context with the same codec.
+     *
+     * @param bytes the serialized form of the object
+     * @return the deserialized object
+     * @throws IOException if the bytes cannot be read
+     * @throws ClassNotFoundException if the object's class cannot be found
+     */
+    ManagedObject deserialize(ByteBuffer bytes)
+            throws IOException, ClassNotFoundException {
+        boolean success = false;
+        try {
+            if (out == null) {
+                open();
+            }
+            input.readFrom(bytes);
+
+            long start = System.nanoTime();
+            ManagedObject object = codec.readObject(in);
+            lastReadNanos = System.nanoTime() - start;
+            if (in.available() != 0 || input.available() != 0) {
+                throw new StreamCorruptedException(
+                        "Data left unread after deserializing " +
+                        object.getClass().getName());
+            }
+            success = true;
+            return object;
+        } finally {
+            input.readFrom(null);
+            if (!success) {
+                out = null;
+                in = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the serialized size of the last object round-tripped,
+     * including any stream reset marker written before it.
+     */
+    int lastSize() {
+        return lastSize;
+    }
+
+    /**
+     * Returns the time taken to serialize the last object round-tripped.
+     */
+    long lastWriteNanos() {
+        return lastWriteNanos;
+    }
+
+    /**
+     * Returns the time taken to deserialize the last object round-tripped.
+     */
+    long lastReadNanos() {
+        return lastReadNanos;
+    }
+
+    /**
+     * Opens the stream pair, consuming the stream header.
+     */
+    private void open() throws IOException {
+        buffer.reset();
+        input.rewind();
+        out = codec.createOutputStream(buffer);
+        out.flush();
+        in = codec.createInputStream(input);
+    }
+
+    /**
+     * A {@code ByteArrayOutputStream} whose contents can be read in place.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(1024);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * Reads the bytes written to the buffer since it was last reset,
+     * without copying them, or the bytes of another buffer while one is
+     * set with {@link #readFrom}.
+     */
+    private final class BufferInput extends InputStream {
+        private int position;
+        private ByteBuffer source;
+
+        void rewind() {
+            position = 0;
+        }
+
+        void readFrom(ByteBuffer source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read() {
+            if (source != null) {
+                return source.hasRemaining() ? source.get() & 0xff : -1;
+            }
+            if (position >= buffer.size()) {
+                return -1;
+            }
+            return buffer.array()[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int available = available();
+            if (available <= 0) {
+                return len == 0 ? 0 : -1;
+            }
+            int n = Math.min(len, available);
+            if (source != null) {
+                source.get(b, off, n);
+            } else {
+                System.arraycopy(buffer.array(), position, b, off, n);
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            if (source != null) {
+                return source.remaining();
+            }
+            return buffer.size() - position;
+        }
+    }
+}
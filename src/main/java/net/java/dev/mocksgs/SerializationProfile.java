@@ -0,0 +1,280 @@
+package net.java.dev.mocksgs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Statistics about the objects serialized at transaction boundaries,
+ * grouped by class and by binding name. <p>
+ *
+ * A profile is attached to a {@link MockDataManager} with
+ * {@link MockDataManager#setSerializationProfile}, or collected for a
+ * single task with {@link MockSGS#profile}.  Each call to
+ * {@link MockDataManager#serializeDataStore} then adds the serialized
+ * size and the serialization and deserialization time of every object it
+ * round-trips.  This makes it possible for a test to assert, for example,
+ * that no {@code PlayerState} is ever larger than 8 KB:
+ *
+ * <pre>
+ *     SerializationProfile profile = MockSGS.profile(task);
+ *     assertTrue(profile.getClassStatistics(PlayerState.class)
+ *                       .getMaxBytes() &lt;= 8 * 1024);
+ * </pre>
+ *
+ * A profile is not thread safe, and should not be read while a boundary
+ * is being recorded.
+ */
+public class SerializationProfile {
+
+    /**
+     * Orders statistics by total bytes, largest first, then by name.
+     */
+    private static final Comparator<Statistics> BY_TOTAL_BYTES =
+            new Comparator<Statistics>() {
+        @Override
+        public int compare(Statistics a, Statistics b) {
+            if (a.totalBytes != b.totalBytes) {
+                return a.totalBytes > b.totalBytes ? -1 : 1;
+            }
+            return a.name.compareTo(b.name);
+        }
+    };
+
+    private final Map<String, Statistics> classes =
+            new HashMap<String, Statistics>();
+    private final Map<String, Statistics> bindings =
+            new HashMap<String, Statistics>();
+    private int boundaries;
+
+    /**
+     * Returns the number of transaction boundaries recorded.
+     *
+     * @return the number of boundaries
+     */
+    public int getBoundaries() {
+        return boundaries;
+    }
+
+    /**
+     * Returns the statistics for the objects of the given class, not
+     * including its subclasses.
+     *
+     * @param type the class of the objects
+     * @return the statistics, or {@code null} if no object of the class
+     *         has been serialized
+     */
+    public Statistics getClassStatistics(Class<?> type) {
+        return classes.get(type.getName());
+    }
+
+    /**
+     * Returns the statistics for every class serialized, largest total
+     * size first.
+     *
+     * @return list of statistics by class
+     */
+    public List<Statistics> getClassStatistics() {
+        return sorted(classes);
+    }
+
+    /**
+     * Returns the statistics for the objects bound to the given name.
+     *
+     * @param name the name of the binding
+     * @return the statistics, or {@code null} if no object bound to the
+     *         name has been serialized
+     */
+    public Statistics getBindingStatistics(String name) {
+        return bindings.get(name);
+    }
+
+    /**
+     * Returns the statistics for every bound name whose object was
+     * serialized, largest total size first.
+     *
+     * @return list of statistics by binding
+     */
+    public List<Statistics> getBindingStatistics() {
+        return sorted(bindings);
+    }
+
+    /**
+     * Clears all of the statistics collected.
+     */
+    public void reset() {
+        classes.clear();
+        bindings.clear();
+        boundaries = 0;
+    }
+
+    /**
+     * Returns a table of the statistics by class and then by binding, each
+     * sorted by total size, largest first.
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("Serialization profile of ").append(boundaries)
+            .append(" transaction boundaries\n");
+        appendTable(text, "Class", getClassStatistics());
+        appendTable(text, "Binding", getBindingStatistics());
+        return text.toString();
+    }
+
+    /**
+     * Starts recording a transaction boundary.
+     */
+    void boundary() {
+        boundaries++;
+    }
+
+    /**
+     * Records the serialization of one object.
+     *
+     * @param type the class of the object
+     * @param names the names bound to the object, or {@code null}
+     * @param bytes the serialized size of the object
+     * @param writeNanos the time taken to serialize the object
+     * @param readNanos the time taken to deserialize the object
+     */
+    void record(Class<?> type, List<String> names, long bytes,
+                long writeNanos, long readNanos) {
+        statistics(classes, type.getName())
+                .add(bytes, writeNanos, readNanos);
+        if (names != null) {
+            for (String name : names) {
+                statistics(bindings, name).add(bytes, writeNanos, readNanos);
+            }
+        }
+    }
+
+    private static Statistics statistics(Map<String, Statistics> map,
+                                         String name) {
+        Statistics statistics = map.get(name);
+        if (statistics == null) {
+            statistics = new Statistics(name);
+            map.put(name, statistics);
+        }
+        return statistics;
+    }
+
+    private static List<Statistics> sorted(Map<String, Statistics> map) {
+        List<Statistics> list = new ArrayList<Statistics>(map.values());
+        Collections.sort(list, BY_TOTAL_BYTES);
+        return list;
+    }
+
+    private static void appendTable(StringBuilder text, String title,
+                                    List<Statistics> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        text.append(String.format("%n%-50s %8s %12s %10s %10s %12s %12s%n",
+                                  title, "Count", "Total B", "Max B",
+                                  "Avg B", "Write us", "Read us"));
+        for (Statistics row : rows) {
+            text.append(String.format("%-50s %8d %12d %10d %10d %12d %12d%n",
+                                      row.name, row.count, row.totalBytes,
+                                      row.maxBytes, row.getAverageBytes(),
+                                      row.writeNanos / 1000,
+                                      row.readNanos / 1000));
+        }
+    }
+
+    /**
+     * The accumulated statistics for one class or binding.
+     */
+    public static final class Statistics {
+        private final String name;
+        private long count;
+        private long totalBytes;
+        private long maxBytes;
+        private long writeNanos;
+        private long readNanos;
+
+        Statistics(String name) {
+            this.name = name;
+        }
+
+        void add(long bytes, long write, long read) {
+            count++;
+            totalBytes += bytes;
+            maxBytes = Math.max(maxBytes, bytes);
+            writeNanos += write;
+            readNanos += read;
+        }
+
+        /**
+         * Returns the class or binding name.
+         *
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the number of times an object was serialized.
+         *
+         * @return the object count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the total serialized size of the objects.
+         *
+         * @return the total size in bytes
+         */
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * Returns the largest serialized size of any of the objects.
+         *
+         * @return the maximum size in bytes
+         */
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        /**
+         * Returns the average serialized size of the objects.
+         *
+         * @return the average size in bytes
+         */
+        public long getAverageBytes() {
+            return count == 0 ? 0 : totalBytes / count;
+        }
+
+        /**
+         * Returns the total time spent serializing the objects.
+         *
+         * @return the serialization time in nanoseconds
+         */
+        public long getSerializeNanos() {
+            return writeNanos;
+        }
+
+        /**
+         * Returns the total time spent deserializing the objects.
+         *
+         * @return the deserialization time in nanoseconds
+         */
+        public long getDeserializeNanos() {
+            return readNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + count + " objects, " + totalBytes +
+                   " bytes, max " + maxBytes;
+        }
+    }
+}
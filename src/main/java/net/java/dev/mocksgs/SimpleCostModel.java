@@ -0,0 +1,54 @@
+package net.java.dev.mocksgs;
+
+/**
+ * The default {@link CostModel}, which charges a fixed cost for each kind
+ * of access and a fixed cost per byte written.  The defaults are rough
+ * figures for a darkstar node backed by a remote data store.
+ */
+public class SimpleCostModel implements CostModel {
+
+    private final long hitNanos;
+    private final long missNanos;
+    private final long updateNanos;
+    private final long nanosPerByte;
+
+    /**
+     * Creates a cost model with the default costs: 2 microseconds for a
+     * cache hit, 500 microseconds for a cache miss, 50 microseconds for an
+     * update and 10 nanoseconds per byte written.
+     */
+    public SimpleCostModel() {
+        this(2000, 500000, 50000, 10);
+    }
+
+    /**
+     * Creates a cost model with the given costs.
+     *
+     * @param hitNanos the cost of a first access to a cached object
+     * @param missNanos the cost of a first access to an uncached object
+     * @param updateNanos the cost of each update
+     * @param nanosPerByte the cost of each byte written
+     */
+    public SimpleCostModel(long hitNanos, long missNanos, long updateNanos,
+                           long nanosPerByte) {
+        this.hitNanos = hitNanos;
+        this.missNanos = missNanos;
+        this.updateNanos = updateNanos;
+        this.nanosPerByte = nanosPerByte;
+    }
+
+    @Override
+    public long accessNanos(final boolean cached) {
+        return cached ? hitNanos : missNanos;
+    }
+
+    @Override
+    public long updateNanos() {
+        return updateNanos;
+    }
+
+    @Override
+    public long serializationNanos(final int bytes) {
+        return bytes * nanosPerByte;
+    }
+}
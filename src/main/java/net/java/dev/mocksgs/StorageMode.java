@@ -0,0 +1,30 @@
+package net.java.dev.mocksgs;
+
+/**
+ * How a {@link MockDataManager} holds its objects between transaction
+ * boundaries.
+ */
+public enum StorageMode {
+
+    /**
+     * Objects are held as instances on the Java heap, and each boundary
+     * replaces them with freshly deserialized copies.
+     */
+    HEAP,
+
+    /**
+     * At each boundary objects are serialized into buffers outside the
+     * Java heap and the instances are dropped.  Each object is
+     * deserialized again the first time it is retrieved after the
+     * boundary, as it would be from the darkstar data store.
+     */
+    OFF_HEAP,
+
+    /**
+     * As {@link #OFF_HEAP}, but the serialized objects are held in byte
+     * arrays on the Java heap.  This avoids deserializing the objects that
+     * the next transaction does not touch, without reserving memory
+     * outside the heap.
+     */
+    LAZY
+}
@@ -0,0 +1,435 @@
+package net.java.dev.mocksgs;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Predicts how often tasks would abort each other if they ran
+ * concurrently, from the objects and names each task actually read and
+ * wrote when the {@link MockTaskManager} ran it. <p>
+ *
+ * Two task executions conflict if either one wrote an object or name that
+ * the other read or wrote, which is the condition under which Darkstar
+ * aborts one of two overlapping transactions.  Each execution recorded is
+ * compared with the executions recorded just before it, up to a window
+ * of {@link #DEFAULT_WINDOW} executions unless another size is given,
+ * and the conflicts and the pairs compared are counted by pair of task
+ * classes.  The window bounds both the memory used and the cost of
+ * recording an execution, however long the workload runs.  Within a
+ * window the result does not depend on the order or timing of the tasks,
+ * so it gives a deterministic estimate of the abort rate of a workload
+ * that can be checked in a unit test. <p>
+ *
+ * Executions are recorded while the matrix is set with
+ * {@link MockTaskManager#setConflictMatrix}, and only for tasks that run
+ * in a {@link MockDataManager} transaction and commit.
+ */
+public class TaskConflictMatrix {
+
+    /**
+     * The number of previous executions each execution is compared with,
+     * unless another is given.
+     */
+    public static final int DEFAULT_WINDOW = 1024;
+
+    /**
+     * The number of previous executions each execution is compared with.
+     */
+    private final int window;
+    private final Map<Class<?>, Integer> classIndex =
+            new LinkedHashMap<Class<?>, Integer>();
+    /**
+     * The number of executions of each task class, by class index.
+     */
+    private long[] executions = new long[0];
+    /**
+     * The number of conflicting pairs of executions, by class index.
+     */
+    private long[][] conflicts = new long[0][0];
+    /**
+     * The number of pairs of executions compared, by class index.
+     */
+    private long[][] pairs = new long[0][0];
+    /**
+     * The number of executions of each task class in the window, by class
+     * index.
+     */
+    private int[] windowExecutions = new int[0];
+    /**
+     * The executions in the window and the one being recorded, each at
+     * the position of its sequence number modulo the window size plus
+     * one.
+     */
+    private final List<Execution> recent = new ArrayList<Execution>();
+    /**
+     * The total number of executions recorded.
+     */
+    private long recorded = 0;
+    /**
+     * The executions in the window that read or wrote each object and
+     * name, by position in the window.
+     */
+    private final LongHashMap<BitSet> objectReaders = new LongHashMap<BitSet>();
+    private final LongHashMap<BitSet> objectWriters = new LongHashMap<BitSet>();
+    private final Map<String, BitSet> nameReaders =
+            new HashMap<String, BitSet>();
+    private final Map<String, BitSet> nameWriters =
+            new HashMap<String, BitSet>();
+
+    /**
+     * Creates a matrix that compares each execution with the
+     * {@link #DEFAULT_WINDOW} executions before it.
+     */
+    public TaskConflictMatrix() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates a matrix that compares each execution with the given number
+     * of executions before it.  Recording an execution takes time in
+     * proportion to the objects and names it accessed times the window
+     * size.
+     *
+     * @param window the number of previous executions to compare with
+     * @throws IllegalArgumentException if the window is not positive
+     */
+    public TaskConflictMatrix(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException(
+                    "Window must be positive: " + window);
+        }
+        this.window = window;
+    }
+
+    /**
+     * Returns the number of previous executions each execution is
+     * compared with.
+     *
+     * @return the window size
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Returns the task classes recorded, in the order first seen.
+     *
+     * @return the task classes
+     */
+    public synchronized List<Class<?>> getTaskClasses() {
+        return Collections.unmodifiableList(
+                new ArrayList<Class<?>>(classIndex.keySet()));
+    }
+
+    /**
+     * Returns the number of executions recorded for a task class.
+     *
+     * @param taskClass the task class
+     * @return the number of executions
+     */
+    public synchronized long getExecutionCount(Class<?> taskClass) {
+        Integer index = classIndex.get(taskClass);
+        return index == null ? 0 : executions[index];
+    }
+
+    /**
+     * Returns the number of pairs of executions compared, one of each
+     * class, that would conflict if they ran concurrently.
+     *
+     * @param a a task class
+     * @param b another task class, or the same class
+     * @return the number of conflicting pairs
+     */
+    public synchronized long getConflictCount(Class<?> a, Class<?> b) {
+        Integer i = classIndex.get(a);
+        Integer j = classIndex.get(b);
+        return i == null || j == null ? 0 : conflicts[i][j];
+    }
+
+    /**
+     * Returns the number of pairs of distinct executions compared, one of
+     * each class.  Until more executions have been recorded than fit in
+     * the window, this is every pair.
+     *
+     * @param a a task class
+     * @param b another task class, or the same class
+     * @return the number of pairs
+     */
+    public synchronized long getPairCount(Class<?> a, Class<?> b) {
+        Integer i = classIndex.get(a);
+        Integer j = classIndex.get(b);
+        return i == null || j == null ? 0 : pairs[i][j];
+    }
+
+    /**
+     * Returns the fraction of pairs of executions compared, one of each
+     * class, that would conflict if they ran concurrently.
+     *
+     * @param a a task class
+     * @param b another task class, or the same class
+     * @return the conflict rate, or {@code 0} if there are no pairs
+     */
+    public synchronized double getConflictRate(Class<?> a, Class<?> b) {
+        long pairs = getPairCount(a, b);
+        return pairs == 0 ? 0 : (double) getConflictCount(a, b) / pairs;
+    }
+
+    /**
+     * Returns the probability that an execution of the given class
+     * conflicts with another execution chosen at random from those it was
+     * compared with.
+     *
+     * @param taskClass the task class
+     * @return the conflict rate, or {@code 0} if there are no pairs
+     */
+    public synchronized double getConflictRate(Class<?> taskClass) {
+        Integer index = classIndex.get(taskClass);
+        if (index == null) {
+            return 0;
+        }
+        long found = 0;
+        long compared = 0;
+        for (int other = 0; other < executions.length; other++) {
+            // each pair within the class involves two of its executions
+            int weight = other == index ? 2 : 1;
+            found += weight * conflicts[index][other];
+            compared += weight * pairs[index][other];
+        }
+        return compared == 0 ? 0 : (double) found / compared;
+    }
+
+    /**
+     * Predicts the fraction of executions of the given class that would
+     * abort when run alongside {@code concurrency - 1} other tasks drawn
+     * from the recorded workload, assuming each conflicts independently.
+     *
+     * @param taskClass the task class
+     * @param concurrency the number of tasks running at once
+     * @return the predicted abort rate
+     */
+    public synchronized double predictAbortRate(Class<?> taskClass,
+                                                int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException(
+                    "Concurrency must be positive: " + concurrency);
+        }
+        return 1 - Math.pow(1 - getConflictRate(taskClass), concurrency - 1);
+    }
+
+    /**
+     * Discards every execution recorded.
+     */
+    public synchronized void reset() {
+        classIndex.clear();
+        executions = new long[0];
+        conflicts = new long[0][0];
+        pairs = new long[0][0];
+        windowExecutions = new int[0];
+        recent.clear();
+        recorded = 0;
+        objectReaders.clear();
+        objectWriters.clear();
+        nameReaders.clear();
+        nameWriters.clear();
+    }
+
+    /**
+     * Returns a table of the conflict rate between each pair of task
+     * classes.
+     */
+    @Override
+    public synchronized String toString() {
+        List<Class<?>> classes = getTaskClasses();
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%-40s %10s", "Task", "Executions"));
+        for (int i = 0; i < classes.size(); i++) {
+            text.append(String.format(" %8s", "#" + i));
+        }
+        text.append(String.format("%n"));
+        for (int i = 0; i < classes.size(); i++) {
+            text.append(String.format("%-40s %10d",
+                                      "#" + i + " " +
+                                      classes.get(i).getSimpleName(),
+                                      executions[i]));
+            for (Class<?> other : classes) {
+                text.append(String.format(" %8.3f",
+                        getConflictRate(classes.get(i), other)));
+            }
+            text.append(String.format("%n"));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Records an execution of a task from the objects and names its
+     * transaction read and wrote.
+     */
+    synchronized void record(Class<?> taskClass, TransactionContext txn) {
+        int index = indexOf(taskClass);
+        int position = (int) (recorded % (window + 1L));
+        if (recent.size() > window) {
+            evict(position);
+        }
+
+        Execution execution = new Execution(index, txn);
+        BitSet found = new BitSet();
+        for (long id : execution.writeIds) {
+            or(found, objectReaders.get(id));
+            or(found, objectWriters.get(id));
+        }
+        for (long id : execution.readIds) {
+            or(found, objectWriters.get(id));
+        }
+        for (String name : execution.writeNames) {
+            or(found, nameReaders.get(name));
+            or(found, nameWriters.get(name));
+        }
+        for (String name : execution.readNames) {
+            or(found, nameWriters.get(name));
+        }
+        for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1)) {
+            int other = recent.get(i).classIndex;
+            conflicts[index][other]++;
+            if (other != index) {
+                conflicts[other][index]++;
+            }
+        }
+        for (int other = 0; other < windowExecutions.length; other++) {
+            pairs[index][other] += windowExecutions[other];
+            if (other != index) {
+                pairs[other][index] += windowExecutions[other];
+            }
+        }
+
+        for (long id : execution.readIds) {
+            add(objectReaders, id, position);
+        }
+        for (long id : execution.writeIds) {
+            add(objectWriters, id, position);
+        }
+        add(nameReaders, execution.readNames, position);
+        add(nameWriters, execution.writeNames, position);
+        if (recent.size() <= window) {
+            recent.add(execution);
+        } else {
+            recent.set(position, execution);
+        }
+        windowExecutions[index]++;
+        executions[index]++;
+        recorded++;
+    }
+
+    /**
+     * Removes the execution at the given position from the window.
+     */
+    private void evict(int position) {
+        Execution execution = recent.get(position);
+        for (long id : execution.readIds) {
+            remove(objectReaders, id, position);
+        }
+        for (long id : execution.writeIds) {
+            remove(objectWriters, id, position);
+        }
+        remove(nameReaders, execution.readNames, position);
+        remove(nameWriters, execution.writeNames, position);
+        windowExecutions[execution.classIndex]--;
+    }
+
+    private int indexOf(Class<?> taskClass) {
+        Integer index = classIndex.get(taskClass);
+        if (index != null) {
+            return index;
+        }
+        int size = classIndex.size();
+        classIndex.put(taskClass, size);
+        long[] grownExecutions = new long[size + 1];
+        System.arraycopy(executions, 0, grownExecutions, 0, size);
+        int[] grownWindow = new int[size + 1];
+        System.arraycopy(windowExecutions, 0, grownWindow, 0, size);
+        executions = grownExecutions;
+        conflicts = grow(conflicts, size);
+        pairs = grow(pairs, size);
+        windowExecutions = grownWindow;
+        return size;
+    }
+
+    private static long[][] grow(long[][] counts, int size) {
+        long[][] grown = new long[size + 1][size + 1];
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(counts[i], 0, grown[i], 0, size);
+        }
+        return grown;
+    }
+
+    private static void or(BitSet found, BitSet executions) {
+        if (executions != null) {
+            found.or(executions);
+        }
+    }
+
+    private static void add(LongHashMap<BitSet> index, long id,
+                            int execution) {
+        BitSet executions = index.get(id);
+        if (executions == null) {
+            executions = new BitSet();
+            index.put(id, executions);
+        }
+        executions.set(execution);
+    }
+
+    private static void add(Map<String, BitSet> index, String[] names,
+                            int execution) {
+        for (String name : names) {
+            BitSet executions = index.get(name);
+            if (executions == null) {
+                executions = new BitSet();
+                index.put(name, executions);
+            }
+            executions.set(execution);
+        }
+    }
+
+    private static void remove(LongHashMap<BitSet> index, long id,
+                               int execution) {
+        BitSet executions = index.get(id);
+        executions.clear(execution);
+        if (executions.isEmpty()) {
+            index.remove(id);
+        }
+    }
+
+    private static void remove(Map<String, BitSet> index, String[] names,
+                               int execution) {
+        for (String name : names) {
+            BitSet executions = index.get(name);
+            executions.clear(execution);
+            if (executions.isEmpty()) {
+                index.remove(name);
+            }
+        }
+    }
+
+    /**
+     * An execution in the window.
+     */
+    private static final class Execution {
+        final int classIndex;
+        final long[] readIds;
+        final long[] writeIds;
+        final String[] readNames;
+        final String[] writeNames;
+
+        Execution(int classIndex, TransactionContext txn) {
+            this.classIndex = classIndex;
+            this.readIds = txn.readIds();
+            this.writeIds = txn.writeIds();
+            this.readNames = txn.readNames().toArray(new String[0]);
+            this.writeNames = txn.writeNames().toArray(new String[0]);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package net.java.dev.mocksgs;
+
+/**
+ * The scheduled tasks of a {@link MockTaskManager}, ordered by the time
+ * they are scheduled to run.  Iteration is in no particular order.
+ */
+interface TaskQueue extends Iterable<AbstractMockTaskHandle> {
+
+    void add(AbstractMockTaskHandle handle);
+
+    /**
+     * Returns a task scheduled no later than any other, or {@code null}
+     * if the queue is empty.
+     */
+    AbstractMockTaskHandle peek();
+
+    /**
+     * Removes and returns the task that {@link #peek} returns.
+     */
+    AbstractMockTaskHandle poll();
+
+    /**
+     * Removes a task.
+     *
+     * @return {@code true} if the task was in the queue
+     */
+    boolean remove(AbstractMockTaskHandle handle);
+
+    int size();
+
+    boolean isEmpty();
+
+    void clear();
+}
@@ -0,0 +1,23 @@
+package net.java.dev.mocksgs;
+
+/**
+ * How a {@link MockTaskManager} keeps its scheduled tasks in order.
+ */
+public enum TaskQueueType {
+
+    /**
+     * Tasks are kept in a binary heap, so scheduling and running a task
+     * take time logarithmic in the number of tasks scheduled.  Tasks
+     * scheduled for the same time run in no particular order.
+     */
+    PRIORITY_QUEUE,
+
+    /**
+     * Tasks are kept in a hierarchical timing wheel, so scheduling,
+     * cancelling and running a task take amortized constant time however
+     * many tasks are scheduled.  Tasks scheduled for the same time run in the
+     * order they were scheduled.  This suits simulations that schedule
+     * very large numbers of periodic tasks.
+     */
+    TIMING_WHEEL
+}
@@ -0,0 +1,261 @@
+package net.java.dev.mocksgs;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A {@link TaskQueue} backed by a hierarchical timing wheel. <p>
+ *
+ * Each level of the wheel has 64 slots, and covers one base-64 digit of
+ * the schedule time.  A task is kept at the level of the highest digit in
+ * which its time differs from the wheel's current time, in the slot for
+ * that digit, so tasks due in the next 64 milliseconds sit in the slots
+ * of the first level by exact time.  A bitmap of the occupied slots of
+ * each level makes finding the earliest occupied slot a single
+ * instruction. <p>
+ *
+ * {@link #peek} does not change the wheel.  The tasks in a slot of the
+ * first level are all due at the same time, so if that level holds any
+ * task, the first task of its earliest occupied slot is the next one.
+ * Otherwise it finds the earliest task in the earliest occupied slot of
+ * the lowest occupied level, and remembers it until that task is
+ * removed, so the slot is only scanned again if that task is cancelled.
+ * Only
+ * {@link #poll} moves the current time forward, emptying that slot into
+ * the levels below and moving the current time to the start of the slot,
+ * which is no later than the task it then returns.  Since the task
+ * manager only polls tasks that are due, the wheel's time never passes
+ * the mock time, and tasks scheduled after the mock time always go into
+ * the wheel.  Each task moves down at most once per level, so adding,
+ * removing and polling tasks take amortized constant time, and tasks
+ * scheduled for the same time are returned in the order they were
+ * added. <p>
+ *
+ * The wheel never moves backward, so a task scheduled before its current
+ * time, which can only happen if the mock time is moved backward, is
+ * kept in a separate heap of overdue tasks, which always run first.
+ */
+final class TimingWheelTaskQueue implements TaskQueue {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int LEVELS = (Long.SIZE + BITS - 1) / BITS;
+
+    /**
+     * The tasks in each slot of each level, in the order added, or
+     * {@code null} for slots that have never been used.
+     */
+    private final List<LinkedHashSet<AbstractMockTaskHandle>> slots =
+            new ArrayList<LinkedHashSet<AbstractMockTaskHandle>>(
+                    LEVELS * SLOTS);
+    /**
+     * For each level, a bit set for each slot holding a task.
+     */
+    private final long[] occupied = new long[LEVELS];
+    /**
+     * Tasks scheduled before the current time.
+     */
+    private final PriorityQueue<AbstractMockTaskHandle> overdue =
+            new PriorityQueue<AbstractMockTaskHandle>();
+    /**
+     * No task in the wheel is scheduled before this time.
+     */
+    private long now = 0;
+    private int size = 0;
+    /**
+     * The earliest task in the wheel, not counting overdue tasks, or
+     * {@code null} if it must be found again.  Only used while the first
+     * level is empty.
+     */
+    private AbstractMockTaskHandle next = null;
+
+    TimingWheelTaskQueue() {
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            slots.add(null);
+        }
+    }
+
+    @Override
+    public void add(AbstractMockTaskHandle handle) {
+        boolean inWheel = place(handle);
+        size++;
+        if (inWheel && next != null &&
+            handle.getScheduleTime() < next.getScheduleTime()) {
+            next = handle;
+        }
+    }
+
+    @Override
+    public AbstractMockTaskHandle peek() {
+        if (!overdue.isEmpty()) {
+            return overdue.peek();
+        }
+        if (size == 0) {
+            return null;
+        }
+        if (occupied[0] != 0) {
+            int slot = Long.numberOfTrailingZeros(occupied[0]);
+            return slots.get(slot).iterator().next();
+        }
+        if (next == null) {
+            int level = 1;
+            while (occupied[level] == 0) {
+                level++;
+            }
+            int slot = Long.numberOfTrailingZeros(occupied[level]);
+            for (AbstractMockTaskHandle handle : slots.get(level * SLOTS + slot)) {
+                if (next == null ||
+                    handle.getScheduleTime() < next.getScheduleTime()) {
+                    next = handle;
+                }
+            }
+        }
+        return next;
+    }
+
+    @Override
+    public AbstractMockTaskHandle poll() {
+        if (!overdue.isEmpty()) {
+            size--;
+            AbstractMockTaskHandle handle = overdue.poll();
+            if (handle == next) {
+                next = null;
+            }
+            return handle;
+        }
+        if (size == 0) {
+            return null;
+        }
+        while (occupied[0] == 0) {
+            int level = 1;
+            while (occupied[level] == 0) {
+                level++;
+            }
+            cascade(level, Long.numberOfTrailingZeros(occupied[level]));
+        }
+        int slot = Long.numberOfTrailingZeros(occupied[0]);
+        AbstractMockTaskHandle handle = slots.get(slot).iterator().next();
+        remove(handle);
+        return handle;
+    }
+
+    @Override
+    public boolean remove(AbstractMockTaskHandle handle) {
+        long time = handle.getScheduleTime();
+        boolean removed;
+        if (time < now) {
+            removed = overdue.remove(handle);
+        } else {
+            int level = levelOf(time);
+            int slot = slotOf(time, level);
+            LinkedHashSet<AbstractMockTaskHandle> tasks =
+                    slots.get(level * SLOTS + slot);
+            removed = tasks != null && tasks.remove(handle);
+            if (removed && tasks.isEmpty()) {
+                occupied[level] &= ~(1L << slot);
+            }
+        }
+        if (removed) {
+            size--;
+            if (handle == next) {
+                next = null;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < slots.size(); i++) {
+            slots.set(i, null);
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            occupied[level] = 0;
+        }
+        overdue.clear();
+        size = 0;
+        next = null;
+    }
+
+    @Override
+    public Iterator<AbstractMockTaskHandle> iterator() {
+        List<AbstractMockTaskHandle> all =
+                new ArrayList<AbstractMockTaskHandle>(size);
+        all.addAll(overdue);
+        for (LinkedHashSet<AbstractMockTaskHandle> tasks : slots) {
+            if (tasks != null) {
+                all.addAll(tasks);
+            }
+        }
+        return all.iterator();
+    }
+
+    /**
+     * Puts a task in the slot for its schedule time, without counting it.
+     *
+     * @return {@code true} if the task went into the wheel, or
+     *         {@code false} if it is overdue
+     */
+    private boolean place(AbstractMockTaskHandle handle) {
+        long time = handle.getScheduleTime();
+        if (time < now) {
+            overdue.add(handle);
+            return false;
+        }
+        int level = levelOf(time);
+        int slot = slotOf(time, level);
+        LinkedHashSet<AbstractMockTaskHandle> tasks =
+                slots.get(level * SLOTS + slot);
+        if (tasks == null) {
+            tasks = new LinkedHashSet<AbstractMockTaskHandle>();
+            slots.set(level * SLOTS + slot, tasks);
+        }
+        tasks.add(handle);
+        occupied[level] |= 1L << slot;
+        return true;
+    }
+
+    /**
+     * Moves the current time forward to the start of a slot, and moves
+     * the tasks in that slot to the levels below.
+     */
+    private void cascade(int level, int slot) {
+        int shift = (level + 1) * BITS;
+        long high = shift >= Long.SIZE ? 0 : (now >>> shift) << shift;
+        now = high | ((long) slot << (level * BITS));
+
+        LinkedHashSet<AbstractMockTaskHandle> tasks =
+                slots.get(level * SLOTS + slot);
+        slots.set(level * SLOTS + slot, null);
+        occupied[level] &= ~(1L << slot);
+        for (AbstractMockTaskHandle handle : tasks) {
+            place(handle);
+        }
+    }
+
+    /**
+     * Returns the level for a time no earlier than the current time.
+     */
+    private int levelOf(long time) {
+        long diff = time ^ now;
+        return diff == 0 ? 0
+                : (Long.SIZE - 1 - Long.numberOfLeadingZeros(diff)) / BITS;
+    }
+
+    private static int slotOf(long time, int level) {
+        return (int) (time >>> (level * BITS)) & (SLOTS - 1);
+    }
+}
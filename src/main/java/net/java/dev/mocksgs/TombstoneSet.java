@@ -0,0 +1,161 @@
+package net.java.dev.mocksgs;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers objects that have been removed from a data store, by
+ * identity, without keeping them alive. <p>
+ *
+ * Each object is held through a weak reference, and its tombstone is
+ * dropped once the object has been garbage collected, since it can then
+ * never be passed to the data store again.  The number of tombstones
+ * can also be capped, in which case the oldest are forgotten first.
+ */
+final class TombstoneSet {
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    /**
+     * The tombstones in the order they were added.  The values are unused.
+     */
+    private final Map<Object, Boolean> tombstones;
+    /**
+     * The maximum number of tombstones kept.
+     */
+    private int limit;
+
+    TombstoneSet(int limit) {
+        this.limit = limit;
+        this.tombstones = new LinkedHashMap<Object, Boolean>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Boolean> e) {
+                return size() > TombstoneSet.this.limit;
+            }
+        };
+    }
+
+    void add(Object object) {
+        expunge();
+        tombstones.put(new Tombstone(object, queue), Boolean.TRUE);
+    }
+
+    boolean contains(Object object) {
+        expunge();
+        return tombstones.containsKey(new Probe(object));
+    }
+
+    void remove(Object object) {
+        expunge();
+        tombstones.remove(new Probe(object));
+    }
+
+    int size() {
+        expunge();
+        return tombstones.size();
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Sets the maximum number of tombstones kept, forgetting the oldest
+     * if there are more.
+     */
+    void setLimit(int limit) {
+        this.limit = limit;
+        Iterator<Object> i = tombstones.keySet().iterator();
+        while (tombstones.size() > limit && i.hasNext()) {
+            i.next();
+            i.remove();
+        }
+    }
+
+    /**
+     * Returns a copy holding the tombstones of the objects that are still
+     * alive, in the same order.
+     */
+    TombstoneSet copy() {
+        expunge();
+        TombstoneSet copy = new TombstoneSet(limit);
+        List<Object> live = new ArrayList<Object>(tombstones.size());
+        for (Object key : tombstones.keySet()) {
+            Object object = ((Tombstone) key).get();
+            if (object != null) {
+                live.add(object);
+            }
+        }
+        for (Object object : live) {
+            copy.add(object);
+        }
+        return copy;
+    }
+
+    /**
+     * Drops the tombstones of objects that have been garbage collected.
+     */
+    private void expunge() {
+        Reference<?> cleared;
+        while ((cleared = queue.poll()) != null) {
+            tombstones.remove(cleared);
+        }
+    }
+
+    /**
+     * A weak reference to a removed object, hashed by the object's
+     * identity.
+     */
+    private static final class Tombstone extends WeakReference<Object> {
+        private final int hash;
+
+        Tombstone(Object object, ReferenceQueue<Object> queue) {
+            super(object, queue);
+            hash = System.identityHashCode(object);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other == this) {
+                return true;
+            }
+            Object object = get();
+            return object != null && other instanceof Tombstone &&
+                   ((Tombstone) other).get() == object;
+        }
+    }
+
+    /**
+     * Looks up the tombstone of a live object.
+     */
+    private static final class Probe {
+        private final Object object;
+
+        Probe(Object object) {
+            this.object = object;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(object);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Tombstone &&
+                   ((Tombstone) other).get() == object;
+        }
+    }
+}
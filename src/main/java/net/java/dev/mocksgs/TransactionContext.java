@@ -0,0 +1,140 @@
+package net.java.dev.mocksgs;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.sun.sgs.app.ManagedObject;
+
+/**
+ * The state of a single {@link MockDataManager} transaction on one
+ * thread: its undo log, the ids and names it has read and written, and,
+ * for isolated transactions, its private copies of the objects it has
+ * accessed.
+ */
+final class TransactionContext {
+
+    /**
+     * Records the changes to undo if the transaction aborts.
+     */
+    final UndoLog undoLog = new UndoLog();
+    /**
+     * The commit sequence number of the data store when the transaction
+     * started.
+     */
+    final long startSequence;
+    /**
+     * If {@code true}, the transaction works on private copies of the
+     * objects it accesses, which are only installed in the data store
+     * when it commits.
+     */
+    final boolean isolated;
+    /**
+     * The commit sequence number assigned when the transaction commits.
+     */
+    long commitSequence;
+
+    private final LongHashMap<Boolean> readIds = new LongHashMap<Boolean>();
+    private final LongHashMap<Boolean> writeIds = new LongHashMap<Boolean>();
+    private final Set<String> readNames = new HashSet<String>();
+    private final Set<String> writeNames = new HashSet<String>();
+    /**
+     * Private copies of the objects accessed by an isolated transaction.
+     */
+    private LongHashMap<ManagedObject> copies;
+    /**
+     * Maps each private copy back to its id.
+     */
+    private Map<ManagedObject, Long> copyIds;
+
+    TransactionContext(long startSequence, boolean isolated) {
+        this.startSequence = startSequence;
+        this.isolated = isolated;
+        if (isolated) {
+            copies = new LongHashMap<ManagedObject>();
+            copyIds = new IdentityHashMap<ManagedObject, Long>();
+        }
+    }
+
+    void objectRead(long id) {
+        readIds.put(id, Boolean.TRUE);
+    }
+
+    void objectWritten(long id) {
+        writeIds.put(id, Boolean.TRUE);
+    }
+
+    void nameRead(String name) {
+        readNames.add(name);
+    }
+
+    void nameWritten(String name) {
+        writeNames.add(name);
+    }
+
+    long[] readIds() {
+        return readIds.keys();
+    }
+
+    long[] writeIds() {
+        return writeIds.keys();
+    }
+
+    Set<String> readNames() {
+        return readNames;
+    }
+
+    Set<String> writeNames() {
+        return writeNames;
+    }
+
+    /**
+     * Returns a description of the first object or name written by the
+     * other transaction that this transaction has read or written, or
+     * {@code null} if there is none.
+     */
+    String findConflict(TransactionContext other) {
+        for (long id : other.writeIds.keys()) {
+            if (readIds.containsKey(id) || writeIds.containsKey(id)) {
+                return "object " + id;
+            }
+        }
+        for (String name : other.writeNames) {
+            if (readNames.contains(name) || writeNames.contains(name)) {
+                return "binding " + name;
+            }
+        }
+        return null;
+    }
+
+    ManagedObject copy(long id) {
+        return copies.get(id);
+    }
+
+    Long copyId(Object object) {
+        return copyIds.get(object);
+    }
+
+    void addCopy(long id, ManagedObject copy) {
+        copies.put(id, copy);
+        copyIds.put(copy, id);
+    }
+
+    void removeCopy(long id) {
+        ManagedObject copy = copies.remove(id);
+        if (copy != null) {
+            copyIds.remove(copy);
+        }
+    }
+
+    /**
+     * Releases the private copies once the transaction has finished.
+     */
+    void clearCopies() {
+        if (isolated) {
+            copies = new LongHashMap<ManagedObject>();
+            copyIds = new IdentityHashMap<ManagedObject, Long>();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package net.java.dev.mocksgs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.sgs.app.ManagedObject;
+
+/**
+ * Records the changes made to a {@link MockDataManager} during a
+ * transaction, so that they can be rolled back if the transaction
+ * aborts.  Entries are undone in the reverse of the order they were
+ * recorded.
+ */
+final class UndoLog {
+
+    /**
+     * The kind of change recorded by an entry.
+     */
+    enum Kind {
+        /** A name was bound, rebound or unbound. */
+        BINDING,
+        /** An object was added to the data store. */
+        ADDED,
+        /** An object was removed from the data store. */
+        REMOVED,
+        /** An object was marked for update. */
+        UPDATED
+    }
+
+    /**
+     * A single change to the data store.
+     */
+    static final class Entry {
+        final Kind kind;
+        final long id;
+        final String name;
+        /**
+         * The id previously bound to the name, or {@code null}.
+         */
+        final Long previousId;
+        /**
+         * The removed object, or the snapshot of an updated object.
+         */
+        final ManagedObject object;
+        /**
+         * The object passed to {@code removeObject}, which may differ from
+         * the removed object if it was shared with a fork.
+         */
+        final Object argument;
+
+        Entry(Kind kind, long id, String name, Long previousId,
+              ManagedObject object, Object argument) {
+            this.kind = kind;
+            this.id = id;
+            this.name = name;
+            this.previousId = previousId;
+            this.object = object;
+            this.argument = argument;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    /**
+     * Ids of the objects that have been added or snapshotted in this
+     * transaction, and so need no further snapshot.
+     */
+    private final LongHashMap<Boolean> touched = new LongHashMap<Boolean>();
+
+    void bindingChanged(String name, Long previousId) {
+        entries.add(new Entry(Kind.BINDING, 0L, name, previousId, null, null));
+    }
+
+    void objectAdded(long id) {
+        touched.put(id, Boolean.TRUE);
+        entries.add(new Entry(Kind.ADDED, id, null, null, null, null));
+    }
+
+    void objectRemoved(long id, ManagedObject object, Object argument) {
+        entries.add(new Entry(Kind.REMOVED, id, null, null, object, argument));
+    }
+
+    /**
+     * Returns whether the object with the id needs a snapshot taken
+     * before it is updated.
+     */
+    boolean needsSnapshot(long id) {
+        return !touched.containsKey(id);
+    }
+
+    void objectUpdated(long id, ManagedObject snapshot) {
+        touched.put(id, Boolean.TRUE);
+        entries.add(new Entry(Kind.UPDATED, id, null, null, snapshot, null));
+    }
+
+    /**
+     * Returns the entries in the order they were recorded.
+     */
+    List<Entry> entries() {
+        return entries;
+    }
+}
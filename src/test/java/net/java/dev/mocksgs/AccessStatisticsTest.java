@@ -0,0 +1,113 @@
+package net.java.dev.mocksgs;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.List;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+import com.sun.sgs.app.ManagedObject;
+import com.sun.sgs.app.ManagedReference;
+
+import static net.java.dev.mocksgs.AccessStatistics.Access.*;
+
+/**
+ * Tests the {@code AccessStatistics} class
+ */
+public class AccessStatisticsTest {
+
+    private MockDataManager manager;
+    private AccessStatistics statistics;
+
+    @Before
+    public void setupManager() {
+        manager = new MockDataManager();
+        statistics = new AccessStatistics();
+        manager.setAccessStatistics(statistics);
+    }
+
+    @Test
+    public void testCountsEachAccess() {
+        Item item = new Item();
+        manager.setBinding("item", item);
+        BigInteger id = manager.getObjectId(item);
+        ManagedReference<Item> ref = manager.createReference(item);
+
+        manager.getBinding("item");
+        manager.getBindingForUpdate("item");
+        manager.markForUpdate(item);
+        ref.get();
+        ref.get();
+        ref.getForUpdate();
+
+        AccessStatistics.Counts counts = statistics.getCumulative();
+        Assert.assertEquals(1, counts.getBindingCount("item", GET_BINDING));
+        Assert.assertEquals(1, counts.getBindingCount("item",
+                                                      GET_BINDING_FOR_UPDATE));
+        Assert.assertEquals(0, counts.getBindingCount("item", GET));
+        Assert.assertEquals(2, counts.getObjectCount(id, GET));
+        Assert.assertEquals(1, counts.getObjectCount(id, GET_FOR_UPDATE));
+        Assert.assertEquals(1, counts.getObjectCount(id, MARK_FOR_UPDATE));
+        Assert.assertEquals(1, counts.getObjectCount(id, GET_BINDING));
+    }
+
+    @Test
+    public void testTaskScope() {
+        manager.setBinding("item", new Item());
+        manager.getBinding("item");
+        statistics.beginTask();
+        manager.getBinding("item");
+        manager.getBinding("item");
+
+        Assert.assertEquals(3, statistics.getCumulative()
+                .getBindingCount("item", GET_BINDING));
+        Assert.assertEquals(2, statistics.getTask()
+                .getBindingCount("item", GET_BINDING));
+        Assert.assertEquals(1, statistics.getTaskCount());
+
+        statistics.reset();
+        Assert.assertEquals(0, statistics.getCumulative()
+                .getBindingCount("item", GET_BINDING));
+        Assert.assertEquals(0, statistics.getTaskCount());
+    }
+
+    @Test
+    public void testHottestObjects() {
+        Item cold = new Item();
+        Item hot = new Item();
+        ManagedReference<Item> coldRef = manager.createReference(cold);
+        ManagedReference<Item> hotRef = manager.createReference(hot);
+        coldRef.get();
+        for (int i = 0; i < 5; i++) {
+            hotRef.get();
+        }
+        hotRef.getForUpdate();
+
+        List<AccessStatistics.Hotspot> top =
+                statistics.getCumulative().getHottestObjects(1);
+        Assert.assertEquals(1, top.size());
+        Assert.assertEquals(hotRef.getId().toString(), top.get(0).getKey());
+        Assert.assertEquals(6, top.get(0).getTotal());
+        Assert.assertEquals(5, top.get(0).getCount(GET));
+        Assert.assertEquals(2, statistics.getCumulative()
+                .getHottestObjects(10).size());
+        Assert.assertTrue(statistics.toString()
+                .indexOf(hotRef.getId().toString()) != -1);
+    }
+
+    @Test
+    public void testDisabled() {
+        Item item = new Item();
+        ManagedReference<Item> ref = manager.createReference(item);
+        manager.setAccessStatistics(null);
+        ref.get();
+
+        Assert.assertTrue(statistics.getCumulative()
+                .getHottestObjects(10).isEmpty());
+    }
+
+    private static class Item implements Serializable, ManagedObject {
+        private static final long serialVersionUID = 1L;
+    }
+}
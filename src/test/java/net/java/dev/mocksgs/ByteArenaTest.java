@@ -0,0 +1,44 @@
+package net.java.dev.mocksgs;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import org.junit.Assert;
+
+/**
+ * Tests the {@code ByteArena} class
+ */
+public class ByteArenaTest {
+
+    @Test
+    public void testPutAndGet() {
+        ByteArena arena = new ByteArena(true);
+        ByteArena.Blob first = arena.put(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+        ByteArena.Blob second = arena.put(ByteBuffer.wrap(new byte[] {4, 5}));
+
+        Assert.assertEquals(5, arena.allocated());
+        assertBytes(new byte[] {1, 2, 3}, arena.get(first));
+        assertBytes(new byte[] {4, 5}, arena.get(second));
+    }
+
+    @Test
+    public void testSpansChunks() {
+        ByteArena arena = new ByteArena(false);
+        byte[] bytes = new byte[ByteArena.CHUNK_SIZE / 2 + 1];
+        bytes[bytes.length - 1] = 7;
+        ByteArena.Blob first = arena.put(ByteBuffer.wrap(bytes));
+        ByteArena.Blob second = arena.put(ByteBuffer.wrap(bytes));
+        ByteArena.Blob large = arena.put(
+                ByteBuffer.wrap(new byte[ByteArena.CHUNK_SIZE * 2]));
+
+        Assert.assertFalse(first.chunk == second.chunk);
+        Assert.assertEquals(7, arena.get(second).get(bytes.length - 1));
+        Assert.assertEquals(ByteArena.CHUNK_SIZE * 2,
+                            arena.get(large).remaining());
+    }
+
+    private static void assertBytes(byte[] expected, ByteBuffer actual) {
+        byte[] bytes = new byte[actual.remaining()];
+        actual.get(bytes);
+        Assert.assertArrayEquals(expected, bytes);
+    }
+}
@@ -0,0 +1,89 @@
+package net.java.dev.mocksgs;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.Assert;
+
+/**
+ * Tests the {@code CopyOnWriteLongHashMap} class
+ */
+public class CopyOnWriteLongHashMapTest {
+
+    @Test
+    public void testRandomOperationsMatchHashMap() {
+        CopyOnWriteLongHashMap<Long> map = new CopyOnWriteLongHashMap<Long>();
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(20000);
+            if (random.nextInt(3) == 0) {
+                Assert.assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                Assert.assertEquals(expected.put(key, key), map.put(key, key));
+            }
+        }
+
+        Assert.assertEquals(expected.size(), map.size());
+        for (long key = 0; key < 20000; key++) {
+            Assert.assertEquals(expected.get(key), map.get(key));
+        }
+        long[] keys = map.keys();
+        Arrays.sort(keys);
+        Assert.assertEquals(expected.size(), keys.length);
+        for (long key : keys) {
+            Assert.assertTrue(expected.containsKey(key));
+        }
+    }
+
+    @Test
+    public void testCopiesAreIndependent() {
+        CopyOnWriteLongHashMap<String> map = new CopyOnWriteLongHashMap<String>();
+        for (long key = 0; key < 10000; key++) {
+            map.put(key, "original");
+        }
+        CopyOnWriteLongHashMap<String> copy = map.copy();
+        CopyOnWriteLongHashMap<String> second = copy.copy();
+
+        map.put(1L, "map");
+        copy.remove(2L);
+        for (long key = 10000; key < 20000; key++) {
+            second.put(key, "second");
+        }
+
+        Assert.assertEquals(10000, map.size());
+        Assert.assertEquals("map", map.get(1L));
+        Assert.assertEquals("original", map.get(2L));
+        Assert.assertNull(map.get(10000L));
+
+        Assert.assertEquals(9999, copy.size());
+        Assert.assertEquals("original", copy.get(1L));
+        Assert.assertNull(copy.get(2L));
+        Assert.assertNull(copy.get(10000L));
+
+        Assert.assertEquals(20000, second.size());
+        Assert.assertEquals("original", second.get(1L));
+        Assert.assertEquals("original", second.get(2L));
+        Assert.assertEquals("second", second.get(19999L));
+    }
+
+    @Test
+    public void testClearDoesNotAffectCopy() {
+        CopyOnWriteLongHashMap<String> map = new CopyOnWriteLongHashMap<String>();
+        map.put(5L, "five");
+        CopyOnWriteLongHashMap<String> copy = map.copy();
+        map.clear();
+
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertFalse(map.containsKey(5L));
+        Assert.assertEquals("five", copy.get(5L));
+    }
+
+    @Test(expected=NullPointerException.class)
+    public void testPutNull() {
+        new CopyOnWriteLongHashMap<String>().put(1L, null);
+    }
+}
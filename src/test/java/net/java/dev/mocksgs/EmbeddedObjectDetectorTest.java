@@ -0,0 +1,87 @@
+package net.java.dev.mocksgs;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+import com.sun.sgs.app.ManagedObject;
+import com.sun.sgs.app.ManagedReference;
+
+/**
+ * Tests the {@code EmbeddedObjectDetector} class
+ */
+public class EmbeddedObjectDetectorTest {
+
+    private MockDataManager manager;
+
+    @Before
+    public void setupManager() {
+        manager = new MockDataManager();
+    }
+
+    @Test
+    public void testReportsEmbeddedObject() throws Exception {
+        EmbeddedObjectDetector detector = new EmbeddedObjectDetector();
+        manager.setEmbeddedObjectDetector(detector);
+        Parent parent = new Parent();
+        parent.children.add(new Child());
+        parent.children.add(new Child());
+        manager.setBinding("parent", parent);
+        manager.serializeDataStore();
+
+        List<EmbeddedObjectDetector.Embedding> found = detector.getEmbeddings();
+        Assert.assertEquals(2, found.size());
+        Assert.assertEquals(Parent.class, found.get(0).getRootClass());
+        Assert.assertEquals(Child.class, found.get(0).getEmbeddedClass());
+        Assert.assertEquals(manager.getObjectId(manager.getBinding("parent")),
+                            found.get(0).getRootId());
+        Assert.assertEquals("Parent.children[0]", found.get(0).getPath());
+        Assert.assertEquals("Parent.children[1]", found.get(1).getPath());
+        Assert.assertTrue(found.get(0).getBytes() > 1024);
+    }
+
+    @Test
+    public void testIgnoresReferences() throws Exception {
+        EmbeddedObjectDetector detector = new EmbeddedObjectDetector(true);
+        manager.setEmbeddedObjectDetector(detector);
+        Parent parent = new Parent();
+        parent.ref = manager.createReference(new Child());
+        manager.setBinding("parent", parent);
+        manager.serializeDataStore();
+
+        Assert.assertTrue(detector.getEmbeddings().isEmpty());
+    }
+
+    @Test
+    public void testStrictFailsBoundary() throws Exception {
+        manager.setEmbeddedObjectDetector(new EmbeddedObjectDetector(true));
+        Parent parent = new Parent();
+        parent.child = new Child();
+        manager.setBinding("parent", parent);
+        ManagedReference<Parent> ref = manager.createReference(parent);
+        try {
+            manager.serializeDataStore();
+            Assert.fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().indexOf("Parent.child") != -1);
+        }
+
+        Assert.assertSame(parent, manager.getBinding("parent"));
+        Assert.assertSame(parent, ref.get());
+    }
+
+    private static class Parent implements Serializable, ManagedObject {
+        private static final long serialVersionUID = 1L;
+        final List<Child> children = new ArrayList<Child>();
+        Child child;
+        ManagedReference<Child> ref;
+    }
+
+    private static class Child implements Serializable, ManagedObject {
+        private static final long serialVersionUID = 1L;
+        final byte[] data = new byte[2048];
+    }
+}
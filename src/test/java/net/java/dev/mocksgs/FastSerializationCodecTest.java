@@ -0,0 +1,169 @@
+package net.java.dev.mocksgs;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.Assert;
+
+import com.sun.sgs.app.ManagedObject;
+
+/**
+ * Tests the {@code FastSerializationCodec} class
+ */
+public class FastSerializationCodecTest {
+
+    private final SerializationContext context =
+            new SerializationContext(new FastSerializationCodec());
+
+    @Test
+    public void testRoundTripSerializable() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            Player player = new Player("player" + i);
+            player.stats.put("level", i);
+            Player copy = (Player) context.roundTrip(player);
+
+            Assert.assertNotSame(player, copy);
+            Assert.assertEquals("player" + i, copy.name);
+            Assert.assertEquals(i, copy.stats.get("level").intValue());
+        }
+    }
+
+    @Test
+    public void testRoundTripExternalizable() throws Exception {
+        External external = new External();
+        external.value = 7;
+        external.player = new Player("nested");
+        External copy = (External) context.roundTrip(external);
+
+        Assert.assertEquals(7, copy.value);
+        Assert.assertEquals("nested", copy.player.name);
+        Assert.assertTrue(copy.constructed);
+    }
+
+    @Test
+    public void testRoundTripSelfReferencingExternalizable() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            SelfReferencing root = new SelfReferencing();
+            root.self = root;
+            root.back = new BackReference(root);
+            SelfReferencing copy = (SelfReferencing) context.roundTrip(root);
+
+            Assert.assertNotSame(root, copy);
+            Assert.assertSame(copy, copy.self);
+            Assert.assertSame(copy, copy.back.root);
+        }
+    }
+
+    @Test
+    public void testRoundTripReadResolve() throws Exception {
+        Resolved copy = (Resolved) context.roundTrip(new Resolved());
+        Assert.assertTrue(copy.resolved);
+    }
+
+    @Test
+    public void testRoundTripManagedReference() throws Exception {
+        MockManagedReference<Player> ref =
+                new MockManagedReference<Player>(5L, new MockDataManager(), 0L);
+        Holder copy = (Holder) context.roundTrip(new Holder(ref));
+
+        Assert.assertEquals(ref, copy.ref);
+        Assert.assertEquals(ref.getId(), copy.ref.getId());
+    }
+
+    private static class Player implements Serializable, ManagedObject {
+        private static final long serialVersionUID = 1L;
+        final String name;
+        final Map<String, Integer> stats = new HashMap<String, Integer>();
+
+        Player(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class Holder implements Serializable, ManagedObject {
+        private static final long serialVersionUID = 1L;
+        final MockManagedReference<Player> ref;
+
+        Holder(MockManagedReference<Player> ref) {
+            this.ref = ref;
+        }
+    }
+
+    public static class External implements Externalizable, ManagedObject {
+        int value;
+        Player player;
+        transient boolean constructed = true;
+
+        public External() {
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeInt(value);
+            out.writeObject(player);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in)
+                throws IOException, ClassNotFoundException {
+            value = in.readInt();
+            player = (Player) in.readObject();
+        }
+    }
+
+    private static class BackReference implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final SelfReferencing root;
+
+        BackReference(SelfReferencing root) {
+            this.root = root;
+        }
+    }
+
+    public static class SelfReferencing
+            implements Externalizable, ManagedObject {
+        SelfReferencing self;
+        BackReference back;
+
+        public SelfReferencing() {
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeObject(self);
+            out.writeObject(back);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in)
+                throws IOException, ClassNotFoundException {
+            self = (SelfReferencing) in.readObject();
+            back = (BackReference) in.readObject();
+        }
+    }
+
+    public static class Resolved implements Externalizable, ManagedObject {
+        transient boolean resolved;
+
+        public Resolved() {
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) {
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) {
+        }
+
+        private Object readResolve() {
+            resolved = true;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package net.java.dev.mocksgs;
+
+import java.io.Serializable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.sgs.app.AppContext;
+import com.sun.sgs.app.ManagedObject;
+import com.sun.sgs.app.ManagedReference;
+import com.sun.sgs.app.Task;
+
+/**
+ * Tests the {@code LatencyEstimator} class
+ */
+public class LatencyEstimatorTest {
+
+    /**
+     * Charges 1 for a hit, 100 for a miss, 1000 for an update and
+     * 1 per byte.
+     */
+    private static final CostModel COSTS = new SimpleCostModel(1, 100, 1000, 1);
+
+    private MockTaskManager taskManager;
+    private MockDataManager dataManager;
+
+    @Before
+    public void init() {
+        MockSGS.init();
+        taskManager = (MockTaskManager) AppContext.getTaskManager();
+        dataManager = (MockDataManager) AppContext.getDataManager();
+    }
+
+    @After
+    public void tearDown() {
+        MockSGS.reset();
+    }
+
+    @Test
+    public void testChargesFirstAccessOnly() {
+        LatencyEstimator estimator = new LatencyEstimator(COSTS, 10, false);
+        Item item = new Item();
+        ManagedReference<Item> ref = dataManager.createReference(item);
+        dataManager.setLatencyEstimator(estimator);
+
+        estimator.beginTask();
+        ref.get();
+        ref.get();
+        Assert.assertEquals(100, estimator.getTaskNanos());
+        Assert.assertEquals(1, estimator.getCacheMisses());
+
+        estimator.beginTask();
+        ref.get();
+        Assert.assertEquals(1, estimator.getTaskNanos());
+        Assert.assertEquals(1, estimator.getCacheHits());
+        Assert.assertEquals(101, estimator.getTotalNanos());
+        Assert.assertEquals(100, estimator.getMaxTaskNanos());
+    }
+
+    @Test
+    public void testCacheEviction() {
+        LatencyEstimator estimator = new LatencyEstimator(COSTS, 1, false);
+        ManagedReference<Item> first = dataManager.createReference(new Item());
+        ManagedReference<Item> second = dataManager.createReference(new Item());
+        dataManager.setLatencyEstimator(estimator);
+
+        estimator.beginTask();
+        first.get();
+        second.get();
+        estimator.beginTask();
+        first.get();
+        Assert.assertEquals(3, estimator.getCacheMisses());
+        Assert.assertEquals(0, estimator.getCacheHits());
+    }
+
+    @Test
+    public void testChargesUpdatesAndWriteBack() throws Exception {
+        LatencyEstimator estimator = new LatencyEstimator(COSTS, 10, false);
+        dataManager.setBinding("item", new Item());
+        dataManager.setLatencyEstimator(estimator);
+        estimator.beginTask();
+        dataManager.getBindingForUpdate("item");
+        Assert.assertEquals(1100, estimator.getTaskNanos());
+
+        dataManager.serializeDataStore();
+        Assert.assertTrue(estimator.getTaskNanos() > 1100 + 1024);
+
+        // already written back
+        long charged = estimator.getTaskNanos();
+        dataManager.serializeDataStore();
+        Assert.assertEquals(charged, estimator.getTaskNanos());
+    }
+
+    @Test
+    public void testAbortIsNotWrittenBack() {
+        LatencyEstimator estimator = new LatencyEstimator(COSTS, 10, false);
+        dataManager.setLatencyEstimator(estimator);
+        estimator.beginTask();
+        dataManager.begin();
+        dataManager.createReference(new Item());
+        dataManager.abort();
+        dataManager.begin();
+        dataManager.commit();
+        Assert.assertEquals(0, estimator.getTaskNanos());
+    }
+
+    @Test
+    public void testTaskManagerAdvancesClock() {
+        LatencyEstimator estimator =
+                new LatencyEstimator(new SimpleCostModel(0, 0, 5000000, 0),
+                                     10, true);
+        dataManager.setBinding("item", new Item());
+        dataManager.setLatencyEstimator(estimator);
+        taskManager.scheduleTask(new UpdateTask());
+        taskManager.scheduleTask(new UpdateTask());
+
+        taskManager.executeNextTaskTick();
+        Assert.assertEquals(5000000, estimator.getTaskNanos());
+        Assert.assertEquals(5, taskManager.getMockTimeMillis());
+        taskManager.executeNextTaskTick();
+        Assert.assertEquals(10, taskManager.getMockTimeMillis());
+        Assert.assertEquals(2, estimator.getTaskCount());
+        Assert.assertEquals(5000000, estimator.getMeanTaskNanos());
+    }
+
+    @Test
+    public void testTaskManagerCarriesSubMillisecondLatency() {
+        LatencyEstimator estimator =
+                new LatencyEstimator(new SimpleCostModel(0, 0, 400000, 0),
+                                     10, true);
+        dataManager.setBinding("item", new Item());
+        dataManager.setLatencyEstimator(estimator);
+        for (int i = 0; i < 5; i++) {
+            taskManager.scheduleTask(new UpdateTask());
+        }
+
+        taskManager.executeNextTaskTick();
+        Assert.assertEquals(0, taskManager.getMockTimeMillis());
+        taskManager.executeNextTaskTick();
+        taskManager.executeNextTaskTick();
+        Assert.assertEquals(1, taskManager.getMockTimeMillis());
+        taskManager.executeNextTaskTick();
+        taskManager.executeNextTaskTick();
+        Assert.assertEquals(2, taskManager.getMockTimeMillis());
+    }
+
+    private static class Item implements Serializable, ManagedObject {
+        private static final long serialVersionUID = 1L;
+        final byte[] data = new byte[1024];
+    }
+
+    private static class UpdateTask implements Serializable, Task {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void run() {
+            AppContext.getDataManager().getBindingForUpdate("item");
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package net.java.dev.mocksgs;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.Assert;
+
+/**
+ * Tests the {@code LongHashMap} class
+ */
+public class LongHashMapTest {
+
+    @Test
+    public void testPutGet() {
+        LongHashMap<String> map = new LongHashMap<String>();
+        map.put(0L, "zero");
+        map.put(-1L, "minus one");
+        map.put(Long.MAX_VALUE, "max");
+
+        Assert.assertEquals(3, map.size());
+        Assert.assertEquals("zero", map.get(0L));
+        Assert.assertEquals("minus one", map.get(-1L));
+        Assert.assertEquals("max", map.get(Long.MAX_VALUE));
+        Assert.assertNull(map.get(1L));
+    }
+
+    @Test
+    public void testPutReplaces() {
+        LongHashMap<String> map = new LongHashMap<String>();
+        Assert.assertNull(map.put(7L, "a"));
+        Assert.assertEquals("a", map.put(7L, "b"));
+        Assert.assertEquals(1, map.size());
+        Assert.assertEquals("b", map.get(7L));
+    }
+
+    @Test(expected=NullPointerException.class)
+    public void testPutNull() {
+        new LongHashMap<String>().put(1L, null);
+    }
+
+    @Test
+    public void testRandomOperationsMatchHashMap() {
+        LongHashMap<Long> map = new LongHashMap<Long>();
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                Assert.assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                Assert.assertEquals(expected.put(key, key), map.put(key, key));
+            }
+        }
+
+        Assert.assertEquals(expected.size(), map.size());
+        for (long key = 0; key < 5000; key++) {
+            Assert.assertEquals(expected.get(key), map.get(key));
+        }
+        Assert.assertEquals(expected.size(), map.keys().length);
+    }
+}
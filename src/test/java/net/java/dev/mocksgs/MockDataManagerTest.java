@@ -7,7 +7,17 @@ import com.sun.sgs.app.ManagedObjectRemoval;
 import com.sun.sgs.app.ManagedReference;
 import com.sun.sgs.app.NameNotBoundException;
 import com.sun.sgs.app.ObjectNotFoundException;
+import com.sun.sgs.app.TransactionConflictException;
+import com.sun.sgs.app.TransactionNotActiveException;
+import java.io.File;
 import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.TreeMap;
 import org.junit.Test;
 import org.junit.Before;
 import org.junit.After;
@@ -25,7 +35,7 @@ public class MockDataManagerTest {
     public void setupManager() {
         manager = new MockDataManager();
         ManagerLocator locator = EasyMock.createMock(ManagerLocator.class);
-        EasyMock.expect(locator.getDataManager()).andReturn(manager);
+        EasyMock.expect(locator.getDataManager()).andReturn(manager).anyTimes();
         EasyMock.replay(locator);
         InternalContext.setManagerLocator(locator);
     }
@@ -179,6 +189,36 @@ public class MockDataManagerTest {
         Assert.assertEquals("name5", n5);
     }
     
+    @Test
+    public void testNextBoundNameEmpty() {
+        Assert.assertNull(manager.nextBoundName(null));
+        Assert.assertNull(manager.nextBoundName("name"));
+    }
+
+    @Test
+    public void testBoundNamesPrefix() {
+        manager.setBinding("a.1", new TestObject());
+        manager.setBinding("b.2", new TestObject());
+        manager.setBinding("b.1", new TestObject());
+        manager.setBinding("c.1", new TestObject());
+
+        Iterator<String> names = manager.boundNames("b.");
+        Assert.assertEquals("b.1", names.next());
+        Assert.assertEquals("b.2", names.next());
+        Assert.assertFalse(names.hasNext());
+    }
+
+    @Test
+    public void testBoundNamesAll() {
+        manager.setBinding("b", new TestObject());
+        manager.setBinding("a", new TestObject());
+
+        Iterator<String> names = manager.boundNames(null);
+        Assert.assertEquals("a", names.next());
+        Assert.assertEquals("b", names.next());
+        Assert.assertFalse(names.hasNext());
+    }
+
     @Test(expected=NullPointerException.class)
     public void removeBindingNull() {
         manager.removeBinding(null);
@@ -288,6 +328,747 @@ public class MockDataManagerTest {
         Assert.assertEquals(o, o1);
     }
     
+    @Test
+    public void testGetObjectId() {
+        TestObject o = new TestObject();
+        ManagedReference<TestObject> ref = manager.createReference(o);
+
+        Assert.assertEquals(ref.getId(), manager.getObjectId(o));
+        Assert.assertSame(o, manager.getObjectWithId(ref.getId()));
+    }
+
+    @Test(expected=ObjectNotFoundException.class)
+    public void testGetObjectWithIdTooLarge() {
+        manager.getObjectWithId(BigInteger.ONE.shiftLeft(64));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testReferenceIdTooLarge() {
+        new MockManagedReference<TestObject>(BigInteger.ONE.shiftLeft(63));
+    }
+
+    @Test
+    public void testReferenceIdFromBigInteger() {
+        Assert.assertEquals(BigInteger.valueOf(Long.MAX_VALUE),
+                            new MockManagedReference<TestObject>(
+                                    BigInteger.valueOf(Long.MAX_VALUE)).getId());
+    }
+
+    @Test
+    public void testSerializeDataStoreFull() throws Exception {
+        Counter c = new Counter();
+        manager.setBinding("counter", c);
+        manager.serializeDataStore();
+
+        ManagedObject copy = manager.getBinding("counter");
+        Assert.assertNotSame(c, copy);
+        manager.serializeDataStore();
+        Assert.assertNotSame(copy, manager.getBinding("counter"));
+    }
+
+    @Test
+    public void testSerializeDataStoreIncremental() throws Exception {
+        manager.setIncrementalSerialization(true);
+        Counter c = new Counter();
+        manager.setBinding("counter", c);
+        manager.serializeDataStore();
+
+        // untouched objects are not round-tripped
+        Counter read = (Counter) manager.getBinding("counter");
+        Assert.assertNotSame(c, read);
+        manager.serializeDataStore();
+        Assert.assertSame(read, manager.getBinding("counter"));
+
+        // objects fetched for update are
+        Counter updated = (Counter) manager.getBindingForUpdate("counter");
+        updated.value++;
+        manager.serializeDataStore();
+        Counter after = (Counter) manager.getBinding("counter");
+        Assert.assertNotSame(updated, after);
+        Assert.assertEquals(1, after.value);
+
+        // as are objects marked for update
+        manager.markForUpdate(after);
+        manager.serializeDataStore();
+        Assert.assertNotSame(after, manager.getBinding("counter"));
+    }
+
+    @Test
+    public void testSerializeDataStoreIncrementalReference() throws Exception {
+        manager.setIncrementalSerialization(true);
+        ManagedReference<Counter> ref = manager.createReference(new Counter());
+        manager.setBinding("ref", new Holder(ref));
+        manager.serializeDataStore();
+
+        Holder holder = (Holder) manager.getBinding("ref");
+        Counter counter = holder.ref.getForUpdate();
+        counter.value = 5;
+        manager.serializeDataStore();
+
+        holder = (Holder) manager.getBinding("ref");
+        Assert.assertEquals(5, holder.ref.get().value);
+    }
+
+    @Test
+    public void testSerializeDataStoreParallel() throws Exception {
+        manager.setSerializationParallelism(4);
+        Counter[] originals = new Counter[100];
+        BigInteger[] ids = new BigInteger[100];
+        for (int i = 0; i < 100; i++) {
+            originals[i] = new Counter();
+            originals[i].value = i;
+            manager.setBinding("counter" + i, originals[i]);
+            ids[i] = manager.getObjectId(originals[i]);
+        }
+        manager.serializeDataStore();
+
+        Assert.assertEquals(100, manager.size());
+        for (int i = 0; i < 100; i++) {
+            Counter c = (Counter) manager.getBinding("counter" + i);
+            Assert.assertNotSame(originals[i], c);
+            Assert.assertEquals(i, c.value);
+            Assert.assertEquals(ids[i], manager.getObjectId(c));
+        }
+        Assert.assertEquals(100, manager.getAllData().size());
+    }
+
+    @Test
+    public void testForksShareSerializationThreads() throws Exception {
+        manager.setSerializationParallelism(4);
+        for (int i = 0; i < 100; i++) {
+            manager.setBinding("counter" + i, new Counter());
+        }
+        for (int i = 0; i < 20; i++) {
+            manager.fork().serializeDataStore();
+        }
+
+        int threads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("MockDataManager-serializer-")) {
+                threads++;
+            }
+        }
+        Assert.assertTrue("Serialization threads: " + threads, threads < 20);
+    }
+
+    @Test
+    public void testSerializeDataStoreFastCodec() throws Exception {
+        manager.setSerializationCodec(new FastSerializationCodec());
+        ManagedReference<Counter> ref = manager.createReference(new Counter());
+        manager.setBinding("ref", new Holder(ref));
+        manager.serializeDataStore();
+        manager.serializeDataStore();
+
+        Holder holder = (Holder) manager.getBinding("ref");
+        holder.ref.getForUpdate().value = 3;
+        manager.serializeDataStore();
+
+        holder = (Holder) manager.getBinding("ref");
+        Assert.assertEquals(3, holder.ref.get().value);
+    }
+
+    @Test
+    public void testExportImportImage() throws Exception {
+        ManagedReference<Counter> ref = manager.createReference(new Counter());
+        ref.getForUpdate().value = 9;
+        manager.setBinding("ref", new Holder(ref));
+        manager.setBinding("other", new Counter());
+
+        File file = File.createTempFile("mocksgs", ".img");
+        try {
+            manager.exportImage(file);
+
+            MockDataManager loaded = new MockDataManager();
+            loaded.importImage(file);
+            Assert.assertEquals(manager.size(), loaded.size());
+            Assert.assertEquals("other", loaded.nextBoundName(null));
+            Assert.assertEquals("ref", loaded.nextBoundName("other"));
+
+            Holder holder = (Holder) loaded.getBinding("ref");
+            Counter counter = (Counter) loaded.getObjectWithId(holder.ref.getId());
+            Assert.assertEquals(9, counter.value);
+            Assert.assertEquals(holder.ref.getId(), loaded.getObjectId(counter));
+
+            // new objects never reuse ids from the image
+            BigInteger id = loaded.createReference(new Counter()).getId();
+            Assert.assertTrue(id.compareTo(holder.ref.getId()) > 0);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testForkIsolatesObjects() throws Exception {
+        Counter c = new Counter();
+        c.value = 1;
+        manager.setBinding("counter", c);
+
+        MockDataManager fork = manager.fork();
+        ((Counter) fork.getBindingForUpdate("counter")).value = 2;
+        ((Counter) manager.getBindingForUpdate("counter")).value = 3;
+
+        Assert.assertEquals(2, ((Counter) fork.getBinding("counter")).value);
+        Assert.assertEquals(3, ((Counter) manager.getBinding("counter")).value);
+        Assert.assertSame(fork.getBinding("counter"), fork.getBinding("counter"));
+    }
+
+    @Test
+    public void testForkIsolatesBindings() throws Exception {
+        manager.setBinding("a", new Counter());
+        MockDataManager fork = manager.fork();
+
+        fork.setBinding("b", new Counter());
+        manager.removeBinding("a");
+
+        Assert.assertEquals("a", fork.nextBoundName(null));
+        Assert.assertEquals("b", fork.nextBoundName("a"));
+        Assert.assertNull(manager.nextBoundName(null));
+        Assert.assertEquals(2, fork.size());
+        Assert.assertEquals(1, manager.size());
+    }
+
+    @Test
+    public void testForkLargeDataStore() throws Exception {
+        for (int i = 0; i < 5000; i++) {
+            manager.setBinding("counter" + i, new Counter());
+        }
+        MockDataManager fork = manager.fork();
+        MockDataManager other = manager.fork();
+
+        ((Counter) fork.getBindingForUpdate("counter7")).value = 7;
+        fork.removeObject(fork.getBinding("counter8"));
+        for (int i = 0; i < 3000; i++) {
+            other.createReference(new Counter());
+        }
+
+        Assert.assertEquals(0, ((Counter) manager.getBinding("counter7")).value);
+        Assert.assertEquals(7, ((Counter) fork.getBinding("counter7")).value);
+        Assert.assertEquals(0, ((Counter) other.getBinding("counter7")).value);
+        Assert.assertEquals(5000, manager.countObjectsOfType(Counter.class));
+        Assert.assertEquals(4999, fork.countObjectsOfType(Counter.class));
+        Assert.assertEquals(8000, other.countObjectsOfType(Counter.class));
+        Assert.assertEquals(5000, manager.getAllData().size());
+        manager.getBinding("counter8");
+        manager.serializeDataStore();
+        fork.serializeDataStore();
+        other.serializeDataStore();
+    }
+
+    @Test
+    public void testForkIsolatesRemoval() throws Exception {
+        Counter c = new Counter();
+        manager.setBinding("counter", c);
+        MockDataManager fork = manager.fork();
+
+        fork.removeObject(fork.getBinding("counter"));
+        Assert.assertEquals(0, fork.size());
+        Assert.assertEquals(1, manager.size());
+        manager.getBinding("counter");
+        manager.serializeDataStore();
+        fork.serializeDataStore();
+    }
+
+    @Test
+    public void testAbortRestoresChanges() throws Exception {
+        Counter kept = new Counter();
+        Counter removed = new Counter();
+        manager.setBinding("kept", kept);
+        manager.setBinding("removed", removed);
+
+        manager.begin();
+        ((Counter) manager.getBindingForUpdate("kept")).value = 5;
+        manager.removeObject(removed);
+        manager.removeBinding("removed");
+        manager.setBinding("added", new Counter());
+        manager.abort();
+
+        Assert.assertFalse(manager.isTransactionActive());
+        Assert.assertEquals(0, ((Counter) manager.getBinding("kept")).value);
+        Assert.assertSame(removed, manager.getBinding("removed"));
+        Assert.assertEquals("kept", manager.nextBoundName(null));
+        Assert.assertEquals("removed", manager.nextBoundName("kept"));
+        Assert.assertNull(manager.nextBoundName("removed"));
+        Assert.assertEquals(2, manager.size());
+        manager.markForUpdate(removed);
+    }
+
+    @Test
+    public void testAbortRestoresRemovedObjectState() throws Exception {
+        manager.setBinding("removed", new ClearingRemoval("payload"));
+
+        manager.begin();
+        manager.removeObject(manager.getBinding("removed"));
+        manager.abort();
+
+        ClearingRemoval restored = (ClearingRemoval) manager.getBinding("removed");
+        Assert.assertEquals("payload", restored.payload);
+        manager.markForUpdate(restored);
+    }
+
+    @Test
+    public void testCommitKeepsChanges() throws Exception {
+        manager.setBinding("counter", new Counter());
+
+        manager.begin();
+        ((Counter) manager.getBindingForUpdate("counter")).value = 5;
+        manager.setBinding("added", new Counter());
+        manager.commit();
+
+        Assert.assertEquals(5, ((Counter) manager.getBinding("counter")).value);
+        Assert.assertEquals(2, manager.size());
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testBeginTwice() {
+        manager.begin();
+        manager.begin();
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testAbortWithoutTransaction() {
+        manager.abort();
+    }
+
+    @Test
+    public void testConcurrentConflictingWrites() throws Exception {
+        manager.setConcurrent(true);
+        manager.setBinding("counter", new Counter());
+
+        manager.begin();
+        ((Counter) manager.getBindingForUpdate("counter")).value = 1;
+        runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                Counter counter = (Counter) manager.getBinding("counter");
+                Assert.assertEquals(0, counter.value);
+                manager.markForUpdate(counter);
+                counter.value = 2;
+            }
+        });
+        try {
+            manager.commit();
+            Assert.fail("Expected TransactionConflictException");
+        } catch (TransactionConflictException e) {
+        }
+
+        Assert.assertFalse(manager.isTransactionActive());
+        Assert.assertEquals(2, ((Counter) manager.getBinding("counter")).value);
+    }
+
+    @Test
+    public void testConcurrentDisjointWrites() throws Exception {
+        manager.setConcurrent(true);
+        manager.setBinding("a", new Counter());
+        manager.setBinding("b", new Counter());
+
+        manager.begin();
+        ((Counter) manager.getBindingForUpdate("a")).value = 1;
+        runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                ((Counter) manager.getBindingForUpdate("b")).value = 2;
+            }
+        });
+        manager.commit();
+
+        Assert.assertEquals(1, ((Counter) manager.getBinding("a")).value);
+        Assert.assertEquals(2, ((Counter) manager.getBinding("b")).value);
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testSetConcurrentWhileActive() {
+        manager.begin();
+        manager.setConcurrent(true);
+    }
+
+    @Test
+    public void testReferenceSeesRemoval() {
+        Counter counter = new Counter();
+        ManagedReference<Counter> ref = manager.createReference(counter);
+        Assert.assertSame(counter, ref.get());
+        Assert.assertSame(counter, ref.getForUpdate());
+        Assert.assertSame(counter, ref.get());
+
+        manager.removeObject(counter);
+        try {
+            ref.get();
+            Assert.fail("Expected ObjectNotFoundException");
+        } catch (ObjectNotFoundException e) {
+        }
+    }
+
+    @Test
+    public void testReferenceSeesAbort() {
+        ManagedReference<Counter> ref = manager.createReference(new Counter());
+        ref.get();
+
+        manager.begin();
+        ref.getForUpdate().value = 5;
+        manager.abort();
+
+        Assert.assertEquals(0, ref.get().value);
+        Assert.assertSame(manager.getObjectWithId(ref.getId()), ref.get());
+    }
+
+    @Test
+    public void testReferenceForUpdateAfterGet() throws Exception {
+        manager.setIncrementalSerialization(true);
+        Counter counter = new Counter();
+        Holder holder = new Holder(manager.createReference(counter));
+        manager.setBinding("holder", holder);
+        manager.serializeDataStore();
+
+        holder = (Holder) manager.getBinding("holder");
+        holder.ref.get();
+        Counter updated = holder.ref.getForUpdate();
+        updated.value = 3;
+        manager.serializeDataStore();
+
+        holder = (Holder) manager.getBinding("holder");
+        Assert.assertEquals(3, holder.ref.get().value);
+        Assert.assertNotSame(updated, holder.ref.get());
+    }
+
+    @Test(expected=TransactionNotActiveException.class)
+    public void testReferenceDeactivatedAtBoundary() throws Exception {
+        ManagedReference<Counter> ref = manager.createReference(new Counter());
+        ref.get();
+        manager.serializeDataStore();
+        ref.get();
+    }
+
+    @Test
+    public void testDeserializedReferenceStaysActive() throws Exception {
+        Holder holder = new Holder(manager.createReference(new Counter()));
+        manager.setBinding("holder", holder);
+        manager.serializeDataStore();
+        manager.serializeDataStore();
+
+        holder = (Holder) manager.getBinding("holder");
+        Assert.assertEquals(0, holder.ref.get().value);
+    }
+
+    @Test
+    public void testTombstoneLimit() {
+        manager.setTombstoneLimit(1);
+        Counter first = new Counter();
+        Counter second = new Counter();
+        manager.createReference(first);
+        manager.createReference(second);
+        manager.removeObject(first);
+        manager.removeObject(second);
+
+        Assert.assertEquals(1, manager.tombstoneCount());
+        try {
+            manager.createReference(second);
+            Assert.fail("Expected ObjectNotFoundException");
+        } catch (ObjectNotFoundException e) {
+        }
+        manager.markForUpdate(first);
+    }
+
+    @Test
+    public void testCreateReferences() {
+        Counter existing = new Counter();
+        ManagedReference<Counter> existingRef = manager.createReference(existing);
+        List<Counter> counters = new ArrayList<Counter>();
+        for (int i = 0; i < 1000; i++) {
+            counters.add(new Counter());
+        }
+        counters.add(existing);
+        counters.add(counters.get(0));
+
+        List<ManagedReference<Counter>> refs = manager.createReferences(counters);
+
+        Assert.assertEquals(1001, manager.size());
+        Assert.assertEquals(counters.size(), refs.size());
+        for (int i = 0; i < counters.size(); i++) {
+            Assert.assertSame(counters.get(i), refs.get(i).get());
+        }
+        Assert.assertEquals(existingRef, refs.get(1000));
+        Assert.assertEquals(refs.get(0), refs.get(1001));
+    }
+
+    @Test
+    public void testCreateReferencesValidatesFirst() {
+        List<Object> objects = new ArrayList<Object>();
+        objects.add(new Counter());
+        objects.add(new ManagedObject() {});
+        try {
+            manager.createReferences(objects);
+            Assert.fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+
+        Assert.assertEquals(0, manager.size());
+    }
+
+    @Test
+    public void testSetBindings() {
+        Map<String, Counter> objects = new TreeMap<String, Counter>();
+        Counter shared = new Counter();
+        objects.put("a", shared);
+        objects.put("b", new Counter());
+        objects.put("c", shared);
+        manager.setBinding("a", new Counter());
+
+        manager.setBindings(objects);
+
+        Assert.assertEquals(3, manager.size());
+        Assert.assertSame(shared, manager.getBinding("a"));
+        Assert.assertSame(objects.get("b"), manager.getBinding("b"));
+        Assert.assertSame(shared, manager.getBinding("c"));
+        Assert.assertNull(manager.nextBoundName("c"));
+    }
+
+    @Test
+    public void testOffHeapStorage() throws Exception {
+        manager.setStorageMode(StorageMode.OFF_HEAP);
+        Counter counter = new Counter();
+        counter.value = 4;
+        manager.setBinding("holder",
+                new Holder(manager.createReference(counter)));
+        manager.serializeDataStore();
+
+        Assert.assertEquals(2, manager.size());
+        Assert.assertTrue(manager.getAllData().isEmpty());
+
+        Holder holder = (Holder) manager.getBindingForUpdate("holder");
+        Assert.assertSame(holder, manager.getBinding("holder"));
+        Assert.assertEquals(1, manager.getAllData().size());
+        holder.ref.getForUpdate().value = 9;
+        manager.serializeDataStore();
+
+        holder = (Holder) manager.getBinding("holder");
+        Assert.assertEquals(9, holder.ref.get().value);
+        Assert.assertEquals(2, manager.size());
+    }
+
+    @Test
+    public void testOffHeapStorageParallel() throws Exception {
+        manager.setStorageMode(StorageMode.OFF_HEAP);
+        manager.setSerializationParallelism(4);
+        manager.setSerializationCodec(new FastSerializationCodec());
+        List<Counter> counters = new ArrayList<Counter>();
+        for (int i = 0; i < 1000; i++) {
+            Counter counter = new Counter();
+            counter.value = i;
+            counters.add(counter);
+        }
+        List<ManagedReference<Counter>> refs = manager.createReferences(counters);
+        manager.serializeDataStore();
+
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(i, ((Counter) manager.getObjectWithId(
+                    refs.get(i).getId())).value);
+        }
+    }
+
+    @Test
+    public void testLeaveOffHeapStorage() throws Exception {
+        manager.setStorageMode(StorageMode.OFF_HEAP);
+        manager.setBinding("counter", new Counter());
+        manager.serializeDataStore();
+        manager.setStorageMode(StorageMode.HEAP);
+
+        Assert.assertEquals(1, manager.getAllData().size());
+        Assert.assertSame(manager.getAllData().iterator().next(),
+                          manager.getBinding("counter"));
+    }
+
+    @Test
+    public void testOffHeapExportImage() throws Exception {
+        manager.setStorageMode(StorageMode.OFF_HEAP);
+        Counter counter = new Counter();
+        counter.value = 6;
+        manager.setBinding("counter", counter);
+        manager.serializeDataStore();
+
+        File file = File.createTempFile("mocksgs", ".img");
+        try {
+            manager.exportImage(file);
+            MockDataManager loaded = new MockDataManager();
+            loaded.importImage(file);
+            Assert.assertEquals(6, ((Counter) loaded.getBinding("counter")).value);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testLazyStorageCountsDeserializations() throws Exception {
+        manager.setStorageMode(StorageMode.LAZY);
+        for (int i = 0; i < 10; i++) {
+            manager.setBinding("counter" + i, new Counter());
+        }
+        manager.serializeDataStore();
+        Assert.assertEquals(0, manager.getDeserializationCount());
+
+        ((Counter) manager.getBindingForUpdate("counter3")).value = 3;
+        manager.getBinding("counter3");
+        manager.getBinding("counter5");
+        Assert.assertEquals(2, manager.getDeserializationCount());
+
+        manager.serializeDataStore();
+        manager.resetDeserializationCount();
+        Assert.assertEquals(3, ((Counter) manager.getBinding("counter3")).value);
+        Assert.assertEquals(1, manager.getDeserializationCount());
+        Assert.assertEquals(10, manager.size());
+
+        manager.serializeDataStore();
+        manager.resetDeserializationCount();
+        manager.setStorageMode(StorageMode.HEAP);
+        Assert.assertEquals(0, manager.getDeserializationCount());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testSetSerializationParallelismInvalid() {
+        manager.setSerializationParallelism(0);
+    }
+
+    @Test
+    public void testObjectsOfType() throws Exception {
+        Counter first = new Counter();
+        Counter second = new Counter();
+        manager.setBinding("first", first);
+        manager.createReference(second);
+        manager.setBinding("holder",
+                           new Holder(manager.createReference(new Counter())));
+
+        Assert.assertEquals(3, manager.countObjectsOfType(Counter.class));
+        Assert.assertEquals(1, manager.countObjectsOfType(Holder.class));
+        Assert.assertEquals(4, manager.countObjectsOfType(ManagedObject.class));
+        List<Counter> counters = manager.getObjectsOfType(Counter.class);
+        Assert.assertEquals(3, counters.size());
+        Assert.assertSame(first, counters.get(0));
+        Assert.assertSame(second, counters.get(1));
+        Assert.assertTrue(counters instanceof RandomAccess);
+        Assert.assertEquals(2, counters.subList(1, 3).size());
+
+        manager.removeObject(second);
+        Assert.assertEquals(2, manager.countObjectsOfType(Counter.class));
+        Assert.assertSame(first,
+                          manager.getObjectsOfType(Counter.class).get(0));
+        try {
+            counters.get(1);
+            Assert.fail("Expected ObjectNotFoundException");
+        } catch (ObjectNotFoundException e) {
+        }
+    }
+
+    @Test
+    public void testObjectsOfTypeAfterAbortAndFork() throws Exception {
+        manager.setBinding("kept", new Counter());
+        manager.begin();
+        manager.createReference(new Counter());
+        manager.removeObject(manager.getBinding("kept"));
+        Assert.assertEquals(1, manager.countObjectsOfType(Counter.class));
+        manager.abort();
+        Assert.assertEquals(1, manager.countObjectsOfType(Counter.class));
+
+        MockDataManager fork = manager.fork();
+        fork.createReference(new Counter());
+        Assert.assertEquals(2, fork.countObjectsOfType(Counter.class));
+        Assert.assertEquals(1, manager.countObjectsOfType(Counter.class));
+    }
+
+    @Test
+    public void testObjectsOfTypeNotCounted() throws Exception {
+        AccessStatistics statistics = new AccessStatistics();
+        manager.setAccessStatistics(statistics);
+        Counter counter = new Counter();
+        BigInteger id = manager.getObjectId(counter);
+
+        Assert.assertSame(counter,
+                          manager.getObjectsOfType(Counter.class).get(0));
+        Assert.assertEquals(0, statistics.getCumulative().getObjectCount(
+                id, AccessStatistics.Access.GET));
+    }
+
+    @Test
+    public void testObjectsOfTypeSerialized() throws Exception {
+        manager.setStorageMode(StorageMode.LAZY);
+        for (int i = 0; i < 5; i++) {
+            manager.setBinding("counter" + i, new Counter());
+        }
+        manager.serializeDataStore();
+
+        List<Counter> counters = manager.getObjectsOfType(Counter.class);
+        Assert.assertEquals(5, counters.size());
+        Assert.assertEquals(0, manager.getDeserializationCount());
+        counters.get(2);
+        Assert.assertEquals(1, manager.getDeserializationCount());
+
+        File file = File.createTempFile("mocksgs", ".img");
+        try {
+            manager.exportImage(file);
+            MockDataManager loaded = new MockDataManager();
+            loaded.importImage(file);
+            Assert.assertEquals(5, loaded.countObjectsOfType(Counter.class));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Runs the body in its own committed transaction on another thread,
+     * rethrowing anything it throws.
+     */
+    private void runInTransaction(final Runnable body) throws Exception {
+        final Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    manager.begin();
+                    body.run();
+                    manager.commit();
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        if (failure[0] instanceof Exception) {
+            throw (Exception) failure[0];
+        } else if (failure[0] != null) {
+            throw (Error) failure[0];
+        }
+    }
+
+    private static class Counter implements Serializable, ManagedObject {
+        private static final long serialVersionUID = 1L;
+        int value;
+    }
+
+    private static class Holder implements Serializable, ManagedObject {
+        private static final long serialVersionUID = 1L;
+        final ManagedReference<Counter> ref;
+
+        Holder(ManagedReference<Counter> ref) {
+            this.ref = ref;
+        }
+    }
+
+    /**
+     * Clears its own state when it is removed.
+     */
+    static class ClearingRemoval implements Serializable, ManagedObject,
+                                            ManagedObjectRemoval {
+        private static final long serialVersionUID = 1L;
+        private String payload;
+
+        ClearingRemoval(String payload) {
+            this.payload = payload;
+        }
+
+        @Override
+        public void removingObject() {
+            payload = null;
+        }
+    }
+
     private class TestObject implements Serializable, ManagedObject {
         
     }
@@ -0,0 +1,292 @@
+package net.java.dev.mocksgs;
+
+import java.io.Serializable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.sgs.app.AppContext;
+import com.sun.sgs.app.ExceptionRetryStatus;
+import com.sun.sgs.app.ManagedObject;
+import com.sun.sgs.app.PeriodicTaskHandle;
+import com.sun.sgs.app.Task;
+
+/**
+ * Tests the {@code MockTaskManager} class
+ */
+public class MockTaskManagerTest {
+
+    private MockTaskManager taskManager;
+    private MockDataManager dataManager;
+
+    @Before
+    public void init() {
+        MockSGS.init();
+        taskManager = (MockTaskManager) AppContext.getTaskManager();
+        dataManager = (MockDataManager) AppContext.getDataManager();
+    }
+
+    @After
+    public void tearDown() {
+        MockSGS.reset();
+    }
+
+    @Test
+    public void testRetryRollsBackChanges() {
+        taskManager.setTransactional(true);
+        dataManager.setBinding("counter", new Counter());
+        taskManager.scheduleTask(new FailOnceTask());
+
+        taskManager.executeNextTaskTick();
+        Assert.assertEquals(0, ((Counter) dataManager.getBinding("counter")).value);
+        Assert.assertEquals(1, taskManager.getTotalTaskCount());
+
+        taskManager.executeNextTaskTick();
+        Assert.assertEquals(1, ((Counter) dataManager.getBinding("counter")).value);
+        Assert.assertTrue(taskManager.isTaskQueueEmpty());
+        Assert.assertFalse(dataManager.isTransactionActive());
+    }
+
+    @Test
+    public void testNonTransactionalKeepsChanges() {
+        Assert.assertFalse(taskManager.isTransactional());
+        dataManager.setBinding("counter", new Counter());
+        taskManager.scheduleTask(new FailOnceTask());
+
+        taskManager.executeNextTaskTick();
+        taskManager.executeNextTaskTick();
+        Assert.assertEquals(2, ((Counter) dataManager.getBinding("counter")).value);
+    }
+
+    @Test
+    public void testAccessStatisticsPerTask() {
+        AccessStatistics statistics = new AccessStatistics();
+        dataManager.setAccessStatistics(statistics);
+        dataManager.setBinding("counter", new Counter());
+        taskManager.scheduleTask(new FailOnceTask());
+
+        taskManager.executeNextTaskTick();
+        taskManager.executeNextTaskTick();
+        Assert.assertEquals(2, statistics.getTaskCount());
+        Assert.assertEquals(1, statistics.getTask().getBindingCount(
+                "counter", AccessStatistics.Access.GET_BINDING_FOR_UPDATE));
+        Assert.assertEquals(2, statistics.getCumulative().getBindingCount(
+                "counter", AccessStatistics.Access.GET_BINDING_FOR_UPDATE));
+    }
+
+    @Test
+    public void testCommitConflictIsRetried() {
+        taskManager.setTransactional(true);
+        dataManager.setConcurrent(true);
+        dataManager.setBinding("counter", new Counter());
+        taskManager.scheduleTask(new ConflictOnceTask());
+
+        taskManager.executeNextTaskTick();
+        Assert.assertFalse(dataManager.isTransactionActive());
+        Assert.assertEquals(1, taskManager.getTotalTaskCount());
+        Assert.assertEquals(1, ((Counter) dataManager.getBinding("counter")).value);
+
+        taskManager.executeNextTaskTick();
+        Assert.assertTrue(taskManager.isTaskQueueEmpty());
+        Assert.assertEquals(2, ((Counter) dataManager.getBinding("counter")).value);
+    }
+
+    @Test
+    public void testCancelPeriodicTask() {
+        dataManager.setBinding("counter", new Counter());
+        PeriodicTaskHandle handle =
+                taskManager.schedulePeriodicTask(new IncrementTask(), 0, 10);
+        taskManager.executeNextTaskTick();
+        taskManager.executeNextTaskTick();
+        Assert.assertEquals(2, ((Counter) dataManager.getBinding("counter")).value);
+        Assert.assertEquals(1, taskManager.getTotalTaskCount());
+        Assert.assertSame(handle, taskManager.getPeriodicTaskHandles().get(0));
+
+        handle.cancel();
+        Assert.assertTrue(taskManager.isTaskQueueEmpty());
+        taskManager.executeNextTaskTick();
+        Assert.assertEquals(2, ((Counter) dataManager.getBinding("counter")).value);
+    }
+
+    @Test
+    public void testTimingWheel() {
+        dataManager.setBinding("counter", new Counter());
+        taskManager.scheduleTask(new IncrementTask(), 1000000);
+        PeriodicTaskHandle handle =
+                taskManager.schedulePeriodicTask(new IncrementTask(), 5, 100);
+        taskManager.setTaskQueueType(TaskQueueType.TIMING_WHEEL);
+        Assert.assertEquals(TaskQueueType.TIMING_WHEEL,
+                            taskManager.getTaskQueueType());
+        Assert.assertEquals(2, taskManager.getTotalTaskCount());
+
+        for (int i = 0; i < 3; i++) {
+            taskManager.executeNextTaskTick();
+        }
+        Assert.assertEquals(205, taskManager.getMockTimeMillis());
+        handle.cancel();
+        taskManager.executeNextTaskTick();
+        Assert.assertEquals(1000000, taskManager.getMockTimeMillis());
+        Assert.assertEquals(4, ((Counter) dataManager.getBinding("counter")).value);
+        Assert.assertTrue(taskManager.isTaskQueueEmpty());
+    }
+
+    @Test
+    public void testExecuteUntil() {
+        taskManager.setTransactional(true);
+        dataManager.setBinding("counter", new Counter());
+        taskManager.schedulePeriodicTask(new IncrementTask(), 0, 10);
+        taskManager.scheduleTask(new FailOnceTask(), 25);
+        taskManager.scheduleTask(new IncrementTask(), 1000);
+
+        ExecutionSummary summary = taskManager.executeUntil(100);
+        // 11 periodic runs at 0..100, and the retried task twice
+        Assert.assertEquals(13, summary.getTasksRun());
+        Assert.assertEquals(1, summary.getRetries());
+        Assert.assertEquals(0, summary.getFailures());
+        Assert.assertEquals(12, summary.getTasksCompleted());
+        Assert.assertFalse(summary.isBudgetExhausted());
+        Assert.assertEquals(100, taskManager.getMockTimeMillis());
+        Assert.assertEquals(12, ((Counter) dataManager.getBinding("counter")).value);
+        Assert.assertEquals(110, taskManager.getNextTaskScheduleTime());
+    }
+
+    @Test
+    public void testExecuteUntilTaskBudget() {
+        dataManager.setBinding("counter", new Counter());
+        taskManager.schedulePeriodicTask(new IncrementTask(), 0, 10);
+
+        ExecutionSummary summary = taskManager.executeUntil(1000, 5, 60000);
+        Assert.assertEquals(5, summary.getTasksRun());
+        Assert.assertTrue(summary.isBudgetExhausted());
+        Assert.assertEquals(40, taskManager.getMockTimeMillis());
+    }
+
+    @Test
+    public void testDrainCurrentTick() {
+        dataManager.setBinding("counter", new Counter());
+        taskManager.setMockTimeMillis(50);
+        taskManager.scheduleTask(new IncrementTask());
+        taskManager.scheduleTask(new IncrementTask());
+        taskManager.scheduleTask(new IncrementTask(), 1);
+        taskManager.scheduleTask(new AlwaysRetryTask());
+
+        ExecutionSummary summary = taskManager.drainCurrentTick(100, 60000);
+        Assert.assertEquals(100, summary.getTasksRun());
+        Assert.assertEquals(98, summary.getRetries());
+        Assert.assertTrue(summary.isBudgetExhausted());
+        Assert.assertEquals(50, taskManager.getMockTimeMillis());
+        Assert.assertEquals(2, ((Counter) dataManager.getBinding("counter")).value);
+    }
+
+    @Test
+    public void testExecuteTasks() {
+        dataManager.setBinding("counter", new Counter());
+        taskManager.schedulePeriodicTask(new IncrementTask(), 0, 10);
+        taskManager.scheduleTask(new FailingTask(), 5);
+
+        ExecutionSummary summary = taskManager.executeTasks(4);
+        Assert.assertEquals(4, summary.getTasksRun());
+        Assert.assertEquals(1, summary.getFailures());
+        Assert.assertFalse(summary.isBudgetExhausted());
+        Assert.assertEquals(20, taskManager.getMockTimeMillis());
+        Assert.assertEquals(3, ((Counter) dataManager.getBinding("counter")).value);
+    }
+
+    static class AlwaysRetryTask implements Task, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void run() {
+            throw new RetryException();
+        }
+    }
+
+    static class FailingTask implements Task, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void run() {
+            throw new IllegalStateException("failed");
+        }
+    }
+
+    static class IncrementTask implements Task, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void run() {
+            ((Counter) AppContext.getDataManager()
+                    .getBindingForUpdate("counter")).value++;
+        }
+    }
+
+    static class Counter implements Serializable, ManagedObject {
+        private static final long serialVersionUID = 1L;
+        int value;
+    }
+
+    static class RetryException extends RuntimeException
+            implements ExceptionRetryStatus {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean shouldRetry() {
+            return true;
+        }
+    }
+
+    /**
+     * Increments the counter.  The first time it runs, another
+     * transaction increments the counter and commits first, so the
+     * task's own commit conflicts.
+     */
+    static class ConflictOnceTask implements Task, Serializable {
+        private static final long serialVersionUID = 1L;
+        private boolean interfered = false;
+
+        @Override
+        public void run() {
+            final MockDataManager manager =
+                    (MockDataManager) AppContext.getDataManager();
+            ((Counter) manager.getBindingForUpdate("counter")).value++;
+            if (interfered) {
+                return;
+            }
+            interfered = true;
+            Thread other = new Thread() {
+                @Override
+                public void run() {
+                    manager.begin();
+                    ((Counter) manager.getBindingForUpdate("counter")).value++;
+                    manager.commit();
+                }
+            };
+            other.start();
+            try {
+                other.join();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Increments the counter, failing the first time it runs
+     */
+    static class FailOnceTask implements Task, Serializable {
+        private static final long serialVersionUID = 1L;
+        private boolean failed = false;
+
+        @Override
+        public void run() {
+            Counter counter = (Counter)
+                    AppContext.getDataManager().getBindingForUpdate("counter");
+            counter.value++;
+            if (!failed) {
+                failed = true;
+                throw new RetryException();
+            }
+        }
+    }
+}
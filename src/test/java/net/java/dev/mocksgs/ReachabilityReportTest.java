@@ -0,0 +1,138 @@
+package net.java.dev.mocksgs;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.sgs.app.AppContext;
+import com.sun.sgs.app.ManagedObject;
+import com.sun.sgs.app.ManagedReference;
+import com.sun.sgs.app.Task;
+
+/**
+ * Tests finding unreachable objects with {@code ReachabilityReport}
+ */
+public class ReachabilityReportTest {
+
+    private MockDataManager dataManager;
+
+    @Before
+    public void init() {
+        MockSGS.init();
+        dataManager = (MockDataManager) AppContext.getDataManager();
+    }
+
+    @After
+    public void tearDown() {
+        MockSGS.reset();
+    }
+
+    @Test
+    public void testFollowsReferences() throws Exception {
+        Node root = new Node();
+        Node child = new Node();
+        Node grandChild = new Node();
+        root.next = dataManager.createReference(child);
+        child.next = dataManager.createReference(grandChild);
+        dataManager.setBinding("root", root);
+        Leaf orphan = new Leaf();
+        BigInteger orphanId = dataManager.createReference(orphan).getId();
+
+        ReachabilityReport report = dataManager.findUnreachable(
+                Collections.emptyList());
+        Assert.assertEquals(3, report.getReachableCount());
+        Assert.assertEquals(1, report.getUnreachableCount());
+        Assert.assertEquals(Collections.singletonList(orphanId),
+                            report.getUnreachableIds());
+        Assert.assertEquals(1, report.getUnreachableCount(Leaf.class));
+        Assert.assertEquals(0, report.getUnreachableCount(Node.class));
+        Assert.assertTrue(report.getUnreachableBytes(Leaf.class) > 1024);
+        Assert.assertEquals(report.getUnreachableBytes(),
+                            report.getUnreachableBytes(Leaf.class));
+    }
+
+    @Test
+    public void testCycleWithoutRootIsUnreachable() throws Exception {
+        dataManager.setSerializationParallelism(2);
+        Node first = new Node();
+        Node second = new Node();
+        first.next = dataManager.createReference(second);
+        second.next = dataManager.createReference(first);
+        for (int i = 0; i < 10; i++) {
+            dataManager.setBinding("leaf" + i, new Leaf());
+        }
+
+        ReachabilityReport report = dataManager.findUnreachable(
+                Collections.emptyList());
+        Assert.assertEquals(10, report.getReachableCount());
+        Assert.assertEquals(2, report.getUnreachableCount(Node.class));
+    }
+
+    @Test
+    public void testSerializedStorage() throws Exception {
+        dataManager.setStorageMode(StorageMode.OFF_HEAP);
+        Node root = new Node();
+        root.next = dataManager.createReference(new Leaf());
+        dataManager.setBinding("root", root);
+        dataManager.createReference(new Leaf());
+        dataManager.serializeDataStore();
+
+        ReachabilityReport report = dataManager.findUnreachable(
+                Collections.emptyList());
+        Assert.assertEquals(2, report.getReachableCount());
+        Assert.assertEquals(1, report.getUnreachableCount(Leaf.class));
+        Assert.assertEquals(0, dataManager.getDeserializationCount());
+    }
+
+    @Test
+    public void testScheduledTasksAreRoots() throws Exception {
+        Leaf held = new Leaf();
+        Leaf managedTaskTarget = new Leaf();
+        PlainTask plain = new PlainTask();
+        plain.target = dataManager.createReference(held);
+        ManagedTask managed = new ManagedTask();
+        managed.target = dataManager.createReference(managedTaskTarget);
+        dataManager.createReference(new Leaf());
+        AppContext.getTaskManager().scheduleTask(plain, 100);
+        AppContext.getTaskManager().scheduleTask(managed, 100);
+
+        ReachabilityReport report = MockSGS.findUnreachable();
+        // the managed task itself and both targets
+        Assert.assertEquals(3, report.getReachableCount());
+        Assert.assertEquals(1, report.getUnreachableCount());
+        Assert.assertTrue(report.toString().indexOf(Leaf.class.getName()) != -1);
+    }
+
+    private static class Node implements Serializable, ManagedObject {
+        private static final long serialVersionUID = 1L;
+        ManagedReference<?> next;
+    }
+
+    private static class Leaf implements Serializable, ManagedObject {
+        private static final long serialVersionUID = 1L;
+        final byte[] data = new byte[2048];
+    }
+
+    private static class PlainTask implements Serializable, Task {
+        private static final long serialVersionUID = 1L;
+        ManagedReference<Leaf> target;
+
+        @Override
+        public void run() {
+        }
+    }
+
+    private static class ManagedTask implements Serializable, Task,
+                                                ManagedObject {
+        private static final long serialVersionUID = 1L;
+        ManagedReference<Leaf> target;
+
+        @Override
+        public void run() {
+        }
+    }
+}
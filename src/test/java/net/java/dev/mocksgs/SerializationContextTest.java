@@ -0,0 +1,97 @@
+package net.java.dev.mocksgs;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.Assert;
+
+import com.sun.sgs.app.ManagedObject;
+
+/**
+ * Tests the {@code SerializationContext} class
+ */
+public class SerializationContextTest {
+
+    private final SerializationContext context =
+            new SerializationContext(new JdkSerializationCodec());
+
+    @Test
+    public void testRoundTripRepeatedly() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            Node node = new Node("node" + i);
+            node.children.add("child" + i);
+            Node copy = (Node) context.roundTrip(node);
+
+            Assert.assertNotSame(node, copy);
+            Assert.assertEquals("node" + i, copy.name);
+            Assert.assertEquals("child" + i, copy.children.get(0));
+        }
+    }
+
+    @Test
+    public void testRoundTripDoesNotShareState() throws Exception {
+        Node first = (Node) context.roundTrip(new Node("same"));
+        Node second = (Node) context.roundTrip(new Node("same"));
+
+        Assert.assertNotSame(first.children, second.children);
+    }
+
+    @Test
+    public void testRoundTripExternalizable() throws Exception {
+        External external = new External();
+        external.value = 42;
+        External copy = (External) context.roundTrip(external);
+
+        Assert.assertEquals(42, copy.value);
+    }
+
+    @Test
+    public void testRecoversAfterFailure() throws Exception {
+        try {
+            context.roundTrip(new Broken());
+            Assert.fail("Expected NotSerializableException");
+        } catch (NotSerializableException e) {
+        }
+
+        Node copy = (Node) context.roundTrip(new Node("after"));
+        Assert.assertEquals("after", copy.name);
+    }
+
+    private static class Node implements Serializable, ManagedObject {
+        private static final long serialVersionUID = 1L;
+        final String name;
+        final List<String> children = new ArrayList<String>();
+
+        Node(String name) {
+            this.name = name;
+        }
+    }
+
+    public static class External implements Externalizable, ManagedObject {
+        int value;
+
+        public External() {
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeInt(value);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException {
+            value = in.readInt();
+        }
+    }
+
+    private static class Broken implements Serializable, ManagedObject {
+        private static final long serialVersionUID = 1L;
+        final Object field = new Object();
+    }
+}
@@ -0,0 +1,101 @@
+package net.java.dev.mocksgs;
+
+import java.io.Serializable;
+import java.util.List;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.Assert;
+
+import com.sun.sgs.app.ManagedObject;
+
+/**
+ * Tests the {@code SerializationProfile} class
+ */
+public class SerializationProfileTest {
+
+    private MockDataManager manager;
+    private SerializationProfile profile;
+
+    @Before
+    public void setupManager() {
+        manager = new MockDataManager();
+        profile = new SerializationProfile();
+        manager.setSerializationProfile(profile);
+    }
+
+    @Test
+    public void testRecordsClassesAndBindings() throws Exception {
+        manager.setBinding("small", new Small());
+        manager.setBinding("large", new Large());
+        manager.createReference(new Small());
+        manager.serializeDataStore();
+        manager.serializeDataStore();
+
+        Assert.assertEquals(2, profile.getBoundaries());
+
+        SerializationProfile.Statistics small =
+                profile.getClassStatistics(Small.class);
+        Assert.assertEquals(4, small.getCount());
+        Assert.assertTrue(small.getMaxBytes() > 0);
+        Assert.assertEquals(small.getTotalBytes() / 4, small.getAverageBytes());
+
+        SerializationProfile.Statistics large =
+                profile.getClassStatistics(Large.class);
+        Assert.assertEquals(2, large.getCount());
+        Assert.assertTrue(large.getMaxBytes() > 4096);
+
+        Assert.assertEquals(2, profile.getBindingStatistics("large").getCount());
+        Assert.assertEquals(large.getMaxBytes(),
+                profile.getBindingStatistics("large").getMaxBytes());
+        Assert.assertNull(profile.getClassStatistics(String.class));
+    }
+
+    @Test
+    public void testSortedByTotalBytes() throws Exception {
+        manager.setBinding("small", new Small());
+        manager.setBinding("large", new Large());
+        manager.serializeDataStore();
+
+        List<SerializationProfile.Statistics> classes =
+                profile.getClassStatistics();
+        Assert.assertEquals(Large.class.getName(), classes.get(0).getName());
+        Assert.assertEquals(Small.class.getName(), classes.get(1).getName());
+
+        String text = profile.toString();
+        Assert.assertTrue(text.indexOf(Large.class.getName()) <
+                          text.indexOf(Small.class.getName()));
+        Assert.assertTrue(text.indexOf("large") < text.indexOf("small"));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        manager.setSerializationProfile(null);
+        manager.setBinding("small", new Small());
+        manager.serializeDataStore();
+
+        Assert.assertEquals(0, profile.getBoundaries());
+        Assert.assertTrue(profile.getClassStatistics().isEmpty());
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        manager.setSerializationParallelism(4);
+        for (int i = 0; i < 100; i++) {
+            manager.createReference(new Small());
+        }
+        manager.serializeDataStore();
+
+        Assert.assertEquals(100,
+                profile.getClassStatistics(Small.class).getCount());
+    }
+
+    private static class Small implements Serializable, ManagedObject {
+        private static final long serialVersionUID = 1L;
+        int value;
+    }
+
+    private static class Large implements Serializable, ManagedObject {
+        private static final long serialVersionUID = 1L;
+        byte[] data = new byte[8 * 1024];
+    }
+}
@@ -0,0 +1,154 @@
+package net.java.dev.mocksgs;
+
+import java.io.Serializable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.sgs.app.AppContext;
+import com.sun.sgs.app.ManagedObject;
+import com.sun.sgs.app.Task;
+
+/**
+ * Tests the {@code TaskConflictMatrix} class
+ */
+public class TaskConflictMatrixTest {
+
+    private MockTaskManager taskManager;
+    private MockDataManager dataManager;
+    private TaskConflictMatrix matrix;
+
+    @Before
+    public void init() {
+        MockSGS.init();
+        taskManager = (MockTaskManager) AppContext.getTaskManager();
+        dataManager = (MockDataManager) AppContext.getDataManager();
+        matrix = new TaskConflictMatrix();
+        taskManager.setTransactional(true);
+        taskManager.setConflictMatrix(matrix);
+        dataManager.setBinding("account", new Counter());
+        dataManager.setBinding("news", new Counter());
+    }
+
+    @After
+    public void tearDown() {
+        MockSGS.reset();
+    }
+
+    @Test
+    public void testWritersConflict() {
+        for (int i = 0; i < 3; i++) {
+            taskManager.scheduleTask(new DepositTask());
+        }
+        taskManager.scheduleTask(new ReadNewsTask());
+        taskManager.scheduleTask(new ReadNewsTask());
+        runAll();
+
+        Assert.assertEquals(3, matrix.getExecutionCount(DepositTask.class));
+        Assert.assertEquals(3, matrix.getPairCount(DepositTask.class,
+                                                   DepositTask.class));
+        Assert.assertEquals(3, matrix.getConflictCount(DepositTask.class,
+                                                       DepositTask.class));
+        Assert.assertEquals(1.0, matrix.getConflictRate(DepositTask.class,
+                                                        DepositTask.class), 0);
+        Assert.assertEquals(0, matrix.getConflictCount(DepositTask.class,
+                                                       ReadNewsTask.class));
+        Assert.assertEquals(0, matrix.getConflictCount(ReadNewsTask.class,
+                                                       ReadNewsTask.class));
+
+        // each deposit conflicts with the 2 other deposits out of 4 others
+        Assert.assertEquals(0.5, matrix.getConflictRate(DepositTask.class), 1e-9);
+        Assert.assertEquals(0.75, matrix.predictAbortRate(DepositTask.class, 3),
+                            1e-9);
+        Assert.assertEquals(0, matrix.predictAbortRate(ReadNewsTask.class, 10),
+                            0);
+    }
+
+    @Test
+    public void testReaderConflictsWithWriter() {
+        taskManager.scheduleTask(new DepositTask());
+        taskManager.scheduleTask(new ReadAccountTask());
+        runAll();
+
+        Assert.assertEquals(1, matrix.getConflictCount(DepositTask.class,
+                                                       ReadAccountTask.class));
+        Assert.assertEquals(1, matrix.getConflictCount(ReadAccountTask.class,
+                                                       DepositTask.class));
+        Assert.assertTrue(matrix.toString().indexOf("DepositTask") != -1);
+
+        matrix.reset();
+        Assert.assertTrue(matrix.getTaskClasses().isEmpty());
+    }
+
+    @Test
+    public void testWindowLimitsComparisons() {
+        matrix = new TaskConflictMatrix(2);
+        taskManager.setConflictMatrix(matrix);
+        for (int i = 0; i < 5; i++) {
+            taskManager.scheduleTask(new DepositTask(), i);
+        }
+        taskManager.scheduleTask(new ReadAccountTask(), 5);
+        runAll();
+
+        // each deposit is only compared with the two before it
+        Assert.assertEquals(5, matrix.getExecutionCount(DepositTask.class));
+        Assert.assertEquals(7, matrix.getPairCount(DepositTask.class,
+                                                   DepositTask.class));
+        Assert.assertEquals(7, matrix.getConflictCount(DepositTask.class,
+                                                       DepositTask.class));
+        Assert.assertEquals(2, matrix.getPairCount(DepositTask.class,
+                                                   ReadAccountTask.class));
+        Assert.assertEquals(2, matrix.getConflictCount(ReadAccountTask.class,
+                                                       DepositTask.class));
+        Assert.assertEquals(1.0, matrix.getConflictRate(DepositTask.class), 0);
+    }
+
+    @Test
+    public void testNonTransactionalRecordsNothing() {
+        taskManager.setTransactional(false);
+        taskManager.scheduleTask(new DepositTask());
+        runAll();
+
+        Assert.assertEquals(0, matrix.getExecutionCount(DepositTask.class));
+    }
+
+    private void runAll() {
+        while (!taskManager.isTaskQueueEmpty()) {
+            taskManager.executeNextTaskTick();
+        }
+    }
+
+    static class Counter implements Serializable, ManagedObject {
+        private static final long serialVersionUID = 1L;
+        int value;
+    }
+
+    static class DepositTask implements Task, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void run() {
+            ((Counter) AppContext.getDataManager()
+                    .getBindingForUpdate("account")).value++;
+        }
+    }
+
+    static class ReadAccountTask implements Task, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void run() {
+            AppContext.getDataManager().getBinding("account");
+        }
+    }
+
+    static class ReadNewsTask implements Task, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void run() {
+            AppContext.getDataManager().getBinding("news");
+        }
+    }
+}
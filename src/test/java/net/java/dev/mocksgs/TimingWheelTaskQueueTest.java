@@ -0,0 +1,169 @@
+package net.java.dev.mocksgs;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@code TimingWheelTaskQueue} class
+ */
+public class TimingWheelTaskQueueTest {
+
+    private TimingWheelTaskQueue queue;
+
+    @Before
+    public void setup() {
+        queue = new TimingWheelTaskQueue();
+    }
+
+    @Test
+    public void testOrdersAcrossLevels() {
+        Random random = new Random(42);
+        PriorityTaskQueue expected = new PriorityTaskQueue();
+        for (int i = 0; i < 1000; i++) {
+            long time = random.nextInt(10) == 0
+                    ? Math.abs(random.nextLong() >> 4)
+                    : random.nextInt(100000);
+            AbstractMockTaskHandle handle = handle(time);
+            queue.add(handle);
+            expected.add(handle(time));
+        }
+
+        Assert.assertEquals(1000, queue.size());
+        while (!expected.isEmpty()) {
+            Assert.assertEquals(expected.poll().getScheduleTime(),
+                                queue.poll().getScheduleTime());
+        }
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertNull(queue.poll());
+    }
+
+    @Test
+    public void testInterleavedOperations() {
+        Random random = new Random(7);
+        PriorityTaskQueue expected = new PriorityTaskQueue();
+        long time = 0;
+        for (int i = 0; i < 20000; i++) {
+            int op = random.nextInt(4);
+            if (op < 2) {
+                AbstractMockTaskHandle handle =
+                        handle(time + random.nextInt(op == 0 ? 50 : 500000));
+                queue.add(handle);
+                expected.add(handle);
+            } else if (op == 2 && !expected.isEmpty()) {
+                AbstractMockTaskHandle handle = queue.peek();
+                Assert.assertEquals(expected.peek().getScheduleTime(),
+                                    handle.getScheduleTime());
+                Assert.assertTrue(queue.remove(handle));
+                Assert.assertTrue(expected.remove(handle));
+            } else if (!expected.isEmpty()) {
+                AbstractMockTaskHandle handle = queue.poll();
+                Assert.assertEquals(expected.peek().getScheduleTime(),
+                                    handle.getScheduleTime());
+                Assert.assertTrue(expected.remove(handle));
+                time = handle.getScheduleTime();
+            }
+            Assert.assertEquals(expected.size(), queue.size());
+        }
+    }
+
+    @Test
+    public void testSameTimeInOrderAdded() {
+        AbstractMockTaskHandle first = handle(500);
+        AbstractMockTaskHandle second = handle(500);
+        queue.add(first);
+        queue.add(second);
+
+        Assert.assertSame(first, queue.peek());
+        Assert.assertSame(first, queue.poll());
+        Assert.assertSame(second, queue.poll());
+    }
+
+    @Test(timeout=10000)
+    public void testDrainSameTick() {
+        AbstractMockTaskHandle[] handles = new AbstractMockTaskHandle[100000];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = handle(1000);
+            queue.add(handles[i]);
+        }
+
+        for (AbstractMockTaskHandle handle : handles) {
+            Assert.assertSame(handle, queue.peek());
+            Assert.assertSame(handle, queue.poll());
+        }
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testPeekDoesNotAdvance() {
+        queue.add(handle(1000));
+        Assert.assertEquals(1000, queue.peek().getScheduleTime());
+        AbstractMockTaskHandle early = handle(10);
+        AbstractMockTaskHandle alsoEarly = handle(10);
+        queue.add(early);
+        queue.add(alsoEarly);
+
+        Assert.assertSame(early, queue.peek());
+        Assert.assertSame(early, queue.poll());
+        Assert.assertSame(alsoEarly, queue.poll());
+        Assert.assertEquals(1000, queue.poll().getScheduleTime());
+    }
+
+    @Test
+    public void testOverdueRunFirst() {
+        queue.add(handle(1000));
+        Assert.assertEquals(1000, queue.poll().getScheduleTime());
+        // the wheel has moved forward, so this one is overdue
+        AbstractMockTaskHandle late = handle(10);
+        queue.add(late);
+        queue.add(handle(2000));
+
+        Assert.assertSame(late, queue.peek());
+        Assert.assertSame(late, queue.poll());
+        Assert.assertEquals(2000, queue.poll().getScheduleTime());
+    }
+
+    @Test
+    public void testOverdueAfterPeekAtLaterLevel() {
+        queue.add(handle(1000));
+        queue.poll();
+        AbstractMockTaskHandle far = handle(1000000);
+        queue.add(far);
+        Assert.assertSame(far, queue.peek());
+        AbstractMockTaskHandle late = handle(10);
+        queue.add(late);
+
+        Assert.assertSame(late, queue.peek());
+        Assert.assertSame(late, queue.poll());
+        Assert.assertSame(far, queue.peek());
+        Assert.assertSame(far, queue.poll());
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testRemove() {
+        AbstractMockTaskHandle kept = handle(70);
+        AbstractMockTaskHandle removed = handle(5000);
+        queue.add(kept);
+        queue.add(removed);
+
+        Assert.assertTrue(queue.remove(removed));
+        Assert.assertFalse(queue.remove(removed));
+        Assert.assertEquals(1, queue.size());
+        Set<AbstractMockTaskHandle> all = new HashSet<AbstractMockTaskHandle>();
+        for (AbstractMockTaskHandle handle : queue) {
+            all.add(handle);
+        }
+        Assert.assertEquals(1, all.size());
+        Assert.assertTrue(all.contains(kept));
+        Assert.assertSame(kept, queue.poll());
+        Assert.assertNull(queue.peek());
+    }
+
+    private static AbstractMockTaskHandle handle(long time) {
+        return new MockScheduledTaskHandle(null, 0, time);
+    }
+}
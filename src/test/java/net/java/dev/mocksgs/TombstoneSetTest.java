@@ -0,0 +1,70 @@
+package net.java.dev.mocksgs;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+/**
+ * Tests the {@code TombstoneSet} class
+ */
+public class TombstoneSetTest {
+
+    @Test
+    public void testContainsByIdentity() {
+        TombstoneSet set = new TombstoneSet(Integer.MAX_VALUE);
+        String removed = new String("removed");
+        set.add(removed);
+
+        Assert.assertTrue(set.contains(removed));
+        Assert.assertFalse(set.contains(new String("removed")));
+
+        set.remove(removed);
+        Assert.assertFalse(set.contains(removed));
+        Assert.assertEquals(0, set.size());
+    }
+
+    @Test
+    public void testLimitDropsOldest() {
+        TombstoneSet set = new TombstoneSet(2);
+        Object first = new Object();
+        Object second = new Object();
+        Object third = new Object();
+        set.add(first);
+        set.add(second);
+        set.add(third);
+
+        Assert.assertEquals(2, set.size());
+        Assert.assertFalse(set.contains(first));
+        Assert.assertTrue(set.contains(second));
+        Assert.assertTrue(set.contains(third));
+
+        set.setLimit(1);
+        Assert.assertFalse(set.contains(second));
+        Assert.assertTrue(set.contains(third));
+    }
+
+    @Test
+    public void testCopyIsIndependent() {
+        TombstoneSet set = new TombstoneSet(Integer.MAX_VALUE);
+        Object removed = new Object();
+        set.add(removed);
+        TombstoneSet copy = set.copy();
+        copy.remove(removed);
+
+        Assert.assertTrue(set.contains(removed));
+        Assert.assertFalse(copy.contains(removed));
+    }
+
+    @Test
+    public void testDoesNotKeepObjectsAlive() throws Exception {
+        TombstoneSet set = new TombstoneSet(Integer.MAX_VALUE);
+        for (int i = 0; i < 1000; i++) {
+            set.add(new byte[1024]);
+        }
+
+        for (int i = 0; i < 50 && set.size() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, set.size());
+    }
+}